@@ -29,6 +29,7 @@ import java.io.IOException;
 public class AggregatedResults {
 
     int[] timeSegment; //time
+    double[] time; //time of each row within the sequence (null unless given)
     int nTimeSegments; //largest number of time segments
     double[] runtime; //time
     double[][] meanOccupancy; //time x asset
@@ -86,6 +87,17 @@ public class AggregatedResults {
         
     }
     
+    public void addResults(double[][] margDists, double[] cap, double elapsedTime,
+            int segment, double t){
+        //results at time t within the given segment (used when
+        //several time points are evaluated in each segment)
+        
+        addResults(margDists,cap,elapsedTime);
+        timeSegment[(timeSegment.length-1)] = segment;
+        time = extendVector0(t,time);
+        
+    }
+    
     
     public double[][] getResults(){
         //returns the results in a matrix
@@ -123,6 +135,9 @@ public class AggregatedResults {
     public String resultsHeader(String sep){
         
         String header = "segment" + sep;
+        if (time!=null){
+            header += "time" + sep;
+        }
         
         for (int assetIdx=0; assetIdx<meanOccupancy[0].length; assetIdx++){
             header += "meanAsset" + assetIdx + sep;
@@ -396,6 +411,9 @@ public class AggregatedResults {
         for (int i=1; i<stringArray.length; i++){
             
             str=String.valueOf(timeSegment[(i-1)]) + sep;
+            if (time!=null){
+                str += String.valueOf(time[(i-1)]) + sep;
+            }
             
             for (int assetIdx=0; assetIdx<meanOccupancy[(i-1)].length; assetIdx++){
                 str += String.valueOf(meanOccupancy[(i-1)][assetIdx])+sep;
@@ -37,15 +37,19 @@ public class Asset {
     PhaseTypeDistribution[] phDists;
     
     LocalStateSpace[] localSts; //dist index (index=0 being the primary)
-    LocalStateSpace tempLocalSts; //extra local state spaces for column calculations
+    
+    //ranking of the states (see stateIndex)
+    long[][] counts; //number of vectors of m elements with sum at most r, indexed [m][r]
+    long[] capOffset; //first state of each capacity distribution
+    int[] capScratch,phaseScratch; //configurations of the jump targets
     
     
     int[] capDist; //distribution of capacity between the primary and alternative distributions
     int nsize; //size of the mini-space accounting for the distribution of capacity  
     int cidx,Kuse;
     
-    int assetStateSpaceSize; //the complete size of the state space for this asset
-    int stateIdx;
+    long assetStateSpaceSize; //the complete size of the state space for this asset
+    long stateIdx;
     
     public Asset(int capacity, PhaseTypeDistribution[] phDists, double arrivalRate){
         
@@ -76,276 +80,161 @@ public class Asset {
         capDistSize();
         resetCapDist();
         calculateSize();
+        calculateCounts();
+        calculateOffsets();
+        
+        int mx=0;
+        for (int i=0; i<nPhases.length; i++){
+            mx = Math.max(mx,nPhases[i]);
+        }
+        capScratch = new int[nPhases.length];
+        phaseScratch = new int[mx];
     }
     
-    public int getAssetStateSpaceSize(){
+    public long getAssetStateSpaceSize(){
         return(assetStateSpaceSize);
     }
     
-    public int delta_capChange(int didx, int phChange, String direction){
+    public long delta_capChange(int didx, int phChange, String direction){
+        //returns the delta change (change relative to the current state)
+        //associated with a server added to (up) or removed from
+        //(down) phase phChange of distribution didx
         
-        if (direction.equals("up")){
-            return(delta_capChangeUp(didx,phChange));
-        }else{
-            return(-delta_capChangeDown(didx,phChange));
-        }
+        int diff = direction.equals("up") ? 1 : -1;
+        System.arraycopy(capDist,0,capScratch,0,capDist.length);
+        capScratch[didx] += diff;
+        System.arraycopy(localSts[didx].getCurrentState(),0,phaseScratch,0,nPhases[didx]);
+        phaseScratch[phChange] += diff;
         
+        return((stateIndex(capScratch,didx,phaseScratch)-stateIdx));
     } 
     
-    private int delta_capChangeUp(int didx, int phUp){
-        
-        int rep,tot,d0,d1,d2;
-        
-        //evaluate jump size until next capacity change (d0)
-        
-        d0=0;
-        tot=1;
-        for (int i=0; i<nPhases.length; i++){
-            rep=1;
-            if (i<(nPhases.length-1)){
-                for (int j=(i+1); j<nPhases.length; j++){
-                    rep*=localSts[j].getStateSpaceSize();
-                }
-            }
-            d0 += (localSts[i].currentIndex*rep);
-            tot*=localSts[i].getStateSpaceSize();
-        }
-        d0=tot-d0;
-        
-        //evaluate jump size to new capacity (d1)
-        d1 = jumpSizeCapChange(didx,1);
-        
-        //evaluate jump size under the new capacity
-        //to the new phase configuration
+    public long delta_localPhaseChange(int didx, int pFrom, int pTo){
+        //returns the delta change (change relative to the current state)
+        //associated with a local phase change (without a change of capacity) for
+        //asset dsitribution didx, where there server changes from
+        //phase pFrom to phase pTo.
         
-        int[] newPhases = new int[nPhases[didx]];
-        for (int i=0; i<newPhases.length; i++){
-            if (i==phUp){
-                newPhases[i] = localSts[didx].getCurrentState()[i]+1;
-            }else{
-                newPhases[i] = localSts[didx].getCurrentState()[i];
-            }
-        }
+        //a positive delta means the new state
+        //has higher index than the current state
         
-        d2=0;
-        int fidx=findIndexLocalSts(newPhases,(capDist[didx]+1),nPhases[didx]);
-        for (int i=0; i<nPhases.length; i++){
-            rep=1;
-            if (i<(nPhases.length-1)){
-                for (int j=(i+1); j<nPhases.length; j++){
-                    if (j!=didx){
-                        rep*=localSts[j].getStateSpaceSize();
-                    }else{
-                        rep*=tempLocalSts.getStateSpaceSize();
-                    }
-                }
-            }
-            if (i!=didx){
-                d2 += (localSts[i].currentIndex*rep);
-            }else{
-                d2 += (fidx*rep);
-            }
-        }
+        System.arraycopy(localSts[didx].getCurrentState(),0,phaseScratch,0,nPhases[didx]);
+        phaseScratch[pFrom]--;
+        phaseScratch[pTo]++;
         
-        return((d0+d1+d2));
+        return((stateIndex(capDist,didx,phaseScratch)-stateIdx));
     }
-
-
-    private int delta_capChangeDown(int didx, int phDown){
-        
-        int rep,tot,d0,d1,d2;
-        
-        //evaluate jump size until next capacity change (d0)
-        
-        d0=0;
-        for (int i=0; i<nPhases.length; i++){
-            rep=1;
-            if (i<(nPhases.length-1)){
-                for (int j=(i+1); j<nPhases.length; j++){
-                    rep*=localSts[j].getStateSpaceSize();
-                }
-            }
-            d0 += (localSts[i].currentIndex*rep);
-        }
-        
-        //evaluate jump size to new capacity (d1)
-        d1 = jumpSizeCapChange(didx,-1);
-        
-        //evaluate jump size under the new capacity
-        //to the new phase configuration
-        
-        int[] newPhases = new int[nPhases[didx]];
-        for (int i=0; i<newPhases.length; i++){
-            if (i==phDown){
-                newPhases[i] = localSts[didx].getCurrentState()[i]-1;
-            }else{
-                newPhases[i] = localSts[didx].getCurrentState()[i];
-            }
-        }
+    
+    private long stateIndex(int[] cap, int didx, int[] phases){
+        //index of the state with capacity distribution cap, where
+        //distribution didx has the phases given and the others
+        //are in their current local states. the local states of
+        //a capacity distribution follow each other with the last
+        //distribution fastest.
         
-        d2=0;
-        tot=1;
-        int fidx=findIndexLocalSts(newPhases,(capDist[didx]-1),nPhases[didx]);
-        for (int i=0; i<nPhases.length; i++){
-            rep=1;
-            if (i<(nPhases.length-1)){
-                for (int j=(i+1); j<nPhases.length; j++){
-                    if (j!=didx){
-                        rep*=localSts[j].getStateSpaceSize();
-                    }else{
-                        rep*=tempLocalSts.getStateSpaceSize();
-                    }
-                }
-            }
+        long idx=0,rep=1,size;
+        for (int i=(nPhases.length-1); i>=0; i--){
+            size = counts[(nPhases[i]-1)][cap[i]];
             if (i!=didx){
-                tot*=localSts[i].getStateSpaceSize();
-                d2 += (localSts[i].currentIndex*rep);
+                idx += localSts[i].currentIndex*rep;
             }else{
-                tot*=tempLocalSts.getStateSpaceSize();
-                d2 += (fidx*rep);
+                idx += rankLocal(phases,nPhases[i],cap[i])*rep;
             }
+            rep*=size;
         }
-        d2=tot-d2;
         
-        return((d0+d1+d2));
+        return((capOffset[rankCapDist(cap)]+idx));
     }
-
-    private int jumpSizeCapChange(int didx, int diff){
-        
-        int pidx,Ktemp,dd,val;
-        int[] capNew = new int[capDist.length];
-        for (int i=0; i<capNew.length; i++){
-            if (i!=didx){
-                capNew[i] = capDist[i];
-            }else{
-                capNew[i] = capDist[i]+diff;
-            }
+    
+    private long rankLocal(int[] x, int k, int c){
+        //index of the configuration x of c servers in k phases
+        //in the order of LocalStateSpace, where x[1],...,x[k-1]
+        //run through the vectors with sum at most c (last one
+        //fastest) and x[0] holds the rest. the vectors before x
+        //are counted position by position.
+        
+        long rank=0;
+        int r=c,m;
+        for (int j=1; j<k; j++){
+            m = k-1-j; //positions after j
+            rank += counts[(m+1)][r]-counts[(m+1)][(r-x[j])];
+            r-=x[j];
         }
         
-        val=0;
-        dd=0;
-        if (diff>0){
-            
-            Ktemp=Kuse;
-            int[] capTemp = new int[capDist.length];
-            for (int i=0; i<capTemp.length; i++){
-                capTemp[i] = capDist[i];
-            }            
-            
-            while (!equalVectors(capTemp,capNew)){
-                pidx=nPhases.length-1;
-                do{
-                    if (Ktemp<capacity){
-                        capTemp[pidx]++; Ktemp++;
-                        pidx = -1;
-                    }else if (capTemp[pidx]>0){
-                        Ktemp -= capTemp[pidx];
-                        capTemp[pidx] = 0;
-                        pidx--;
-                    }else{
-                        pidx--;
-                    }
-                }while (pidx>=0);
-                
-                val+=dd;
-                
-                dd=1;
-                for (int i=0; i<capTemp.length; i++){
-                    dd*=fixedCapSize(capTemp[i],nPhases[i]);
-                }
-                
-            }   
-            
-        }else{
-            
-            Ktemp=Kuse+diff;
-            
-            while (!equalVectors(capDist,capNew)){
-                pidx=nPhases.length-1;
-                do{
-                    if (Ktemp<capacity){
-                        capNew[pidx]++; Ktemp++;
-                        pidx = -1;
-                    }else if (capNew[pidx]>0){
-                        Ktemp -= capNew[pidx];
-                        capNew[pidx] = 0;
-                        pidx--;
-                    }else{
-                        pidx--;
-                    }
-                }while (pidx>=0);
-                
-                val+=dd;
-                
-                dd=1;
-                for (int i=0; i<capNew.length; i++){
-                    dd*=fixedCapSize(capNew[i],nPhases[i]);
-                }            
-            }
-            
+        return(rank);
+    }
+    
+    private int rankCapDist(int[] cap){
+        //index of the capacity distribution cap in the order of
+        //nextCapDist (all vectors with sum at most the capacity,
+        //last one fastest)
+        
+        long rank=0;
+        int r=capacity,m;
+        for (int j=0; j<cap.length; j++){
+            m = cap.length-1-j;
+            rank += counts[(m+1)][r]-counts[(m+1)][(r-cap[j])];
+            r-=cap[j];
         }
         
-        return(val);
+        return((int) rank);
     }
     
-    public int delta_localPhaseChange(int didx, int pFrom, int pTo){
-        //returns the delta change (change relative to the current state)
-        //associated with a local phase change (without a change of capacity) for
-        //asset dsitribution didx, where there server changes from
-        //phase pFrom to phase pTo.
+    private void calculateCounts(){
+        //counts[m][r] is the number of vectors of m non-negative
+        //integers with sum at most r, i.e. the binomial coefficient
+        //C(r+m,m). the configurations of c servers in k phases are
+        //counts[k-1][c].
         
-        
-        int[] newPhases = new int[localSts[didx].getCurrentState().length];
-        for (int i=0; i<newPhases.length; i++){
-            if (i==pFrom){
-                newPhases[i] = localSts[didx].getCurrentState()[i]-1;
-            }else if (i==pTo){
-                newPhases[i] = localSts[didx].getCurrentState()[i]+1;
-            }else{
-                newPhases[i] = localSts[didx].getCurrentState()[i];
-            }
-        }
-        
-        //find index of state accounting for all dists in the asset
-        int d1,d2,rep;
-        d1=0;d2=0;
+        int mMax = nPhases.length;
         for (int i=0; i<nPhases.length; i++){
-            rep=1;
-            if (i<(nPhases.length-1)){
-                for (int j=(i+1); j<nPhases.length; j++){
-                    rep*=localSts[j].getStateSpaceSize();
-                }
-            }
-            if (i!=didx){
-                d1 += (localSts[i].currentIndex*rep);
-            }else{
-                d1 += (findIndexLocalSts(newPhases,capDist[didx],nPhases[didx])*rep);
+            mMax = Math.max(mMax,nPhases[i]);
+        }
+        counts = new long[(mMax+1)][(capacity+1)];
+        for (int r=0; r<=capacity; r++){
+            counts[0][r] = 1;
+        }
+        for (int m=1; m<=mMax; m++){
+            counts[m][0] = 1;
+            for (int r=1; r<=capacity; r++){
+                counts[m][r] = Math.addExact(counts[(m-1)][r],counts[m][(r-1)]);
             }
-            d2 += (localSts[i].currentIndex*rep);
         }
         
-        //d1-d2 evaluates the difference from the
-        //current state in the asset 
-        
-        //a positive delta means the new state
-        //has higher index than the current state
-        
-        return((d1-d2));
     }
     
-    private int findIndexLocalSts(int[] newPhases, int c, int nPh){
+    private void calculateOffsets(){
+        //first state of each capacity distribution
         
-        tempLocalSts = new LocalStateSpace(c,nPh);
-        tempLocalSts.generate();
+        capOffset = new long[nsize];
+        int[] cp = new int[nPhases.length];
+        int pidx,K=0;
+        long sm;
         
-        //assumes the vector is in the local state space
-        //(i.e. does not check if index violate state
-        //space size).
-        while (!equalVectors(newPhases,tempLocalSts.getCurrentState())){
-            tempLocalSts.nextState();
+        for (int i=1; i<nsize; i++){
+            
+            sm=1;
+            for (int j=0; j<nPhases.length; j++){
+                sm *= configurations(cp[j],nPhases[j]);
+            }
+            capOffset[i] = capOffset[(i-1)]+sm;
+            
+            pidx=nPhases.length-1;
+            do{
+                if (K<capacity){
+                    cp[pidx]++; K++;
+                    pidx = -1;
+                }else if (cp[pidx]>0){
+                    K -= cp[pidx];
+                    cp[pidx] = 0;
+                    pidx--;
+                }else{
+                    pidx--;
+                }
+            }while (pidx>=0);
+            
         }
         
-        return(tempLocalSts.currentIndex);
     }
     
     
@@ -382,6 +271,35 @@ public class Asset {
         resetCapDist();
     }
     
+    public void setState(long idx){
+        //moves to the state with index idx without visiting
+        //the states before it. the capacity distributions are
+        //passed in order, and within a distribution the index
+        //is split into the local states (last one fastest).
+        
+        resetCapDist();
+        stateIdx=idx;
+        long size=1;
+        for (int i=0; i<nPhases.length; i++){
+            size*=localSts[i].getStateSpaceSize();
+        }
+        while (idx>=size){
+            idx-=size;
+            nextCapDist();
+            size=1;
+            for (int i=0; i<nPhases.length; i++){
+                localSts[i] = new LocalStateSpace(capDist[i],nPhases[i]);
+                localSts[i].generate();
+                size*=localSts[i].getStateSpaceSize();
+            }
+        }
+        for (int i=(nPhases.length-1); i>=0; i--){
+            localSts[i].currentIndex = (int)(idx%localSts[i].getStateSpaceSize());
+            idx/=localSts[i].getStateSpaceSize();
+        }
+        
+    }
+    
     public int currentState_CapDist(int didx){
         //get local state of occupied capacity
         //for the distribution with index didx
@@ -436,7 +354,7 @@ public class Asset {
     private void capDistSize(){
         
         for (int c=0; c<=capacity; c++){
-            nsize+=fixedCapSize(c,nPhases.length);
+            nsize = Math.addExact(nsize,fixedCapSize(c,nPhases.length));
         }
     }
     
@@ -477,9 +395,12 @@ public class Asset {
     
     
     private void calculateSize(){
-        assetStateSpaceSize=0;
-
-        int pidx,sm,K=0;
+        //the sizes are summed exactly, so a size beyond a long
+        //is rejected (ArithmeticException) instead of wrapping
+        //around
+        
+        long size=0,sm;
+        int pidx,K=0;
         int[] cp = new int[nPhases.length];
         
         for (int i=0; i<nsize; i++){
@@ -501,26 +422,28 @@ public class Asset {
             
             sm=1;
             for (int j=0; j<nPhases.length; j++){
-                sm *= fixedCapSize(cp[j],nPhases[j]);
+                sm = Math.multiplyExact(sm,configurations(cp[j],nPhases[j]));
             }
-            assetStateSpaceSize+=sm;
+            size = Math.addExact(size,sm);
             
         }
+        
+        assetStateSpaceSize = size;
 
     }
     
-    public int sizeOnLevel(int capUse){
+    public long sizeOnLevel(int capUse){
         //returns the number of states on a specific
         //capacity occupation level for the asset
         
         LocalStateSpace ls = new LocalStateSpace(capUse,nPhases.length);
         ls.generate();
         
-        int sm,sl=0;
+        long sm,sl=0;
         for (int i=0; i<ls.localStateSpace.length; i++){
             sm=1;
             for (int j=0; j<nPhases.length; j++){
-                sm *= fixedCapSize(ls.localStateSpace[i][j],nPhases[j]);
+                sm *= configurations(ls.localStateSpace[i][j],nPhases[j]);
             }
             sl+=sm;
         }
@@ -529,44 +452,12 @@ public class Asset {
     }
     
     private int fixedCapSize(int x, int k){
-        return((int)binomialCoefficient((x + k-1), (k-1))); 
-    }
-    
-    private long binomialCoefficient(int n, int k){
-        //From The flying keyboard
-        // 2018 TheFlyingKeyboard and released under MIT License
-        // theflyingkeyboard.net
-        
-        long top = 1;
-        for(int i = n; i > k; --i){
-            top *= i;
-        }
-        return (top/factorial(n - k));
-    }
-    
-    private long factorial(int n){
-        //From The flying keyboard
-        // 2018 TheFlyingKeyboard and released under MIT License
-        // theflyingkeyboard.net
-        
-        int fact = 1;
-        for(int i = 2; i <= n; i++){
-            fact *= i;
-        }
-        return fact;
+        return(Math.toIntExact(configurations(x,k))); 
     }
     
-    private boolean equalVectors(int[] a, int[] b){
-        //assumes both vectors have equal length
-        
-        int idx=0;
-        while (idx<a.length && a[idx]==b[idx]){
-            idx++;
-        }
-        if (idx==a.length){
-            return(true);
-        }        
-        return(false);
+    private long configurations(int x, int k){
+        //number of ways to place x items in k bins
+        return(LocalStateSpace.binomialCoefficient((x + k-1), (k-1))); 
     }
     
     
@@ -0,0 +1,139 @@
+/*
+ * Copyright 2022 Anders Reenberg Andersen.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.tranreloc.tranreloc;
+
+/**
+ *
+ * @author Anders Reenberg Andersen
+ */
+
+//Class for a double or long array on the heap indexed by long.
+//A Java array holds at most 2^31 elements, so the elements are
+//kept in chunks of 2^chunkBits elements (as in MappedArray).
+//Element k is element k&chunkMask of chunk k>>>chunkBits. The
+//loops over many elements go through the chunks directly, such
+//that the inner loops run over plain arrays.
+
+public class ChunkedArray {
+
+    static final int CHUNK_BITS = 27;
+
+    long length;
+    int chunkBits;
+    long chunkMask;
+    double[][] doubles; //null for a long array
+    long[][] longs; //null for a double array
+
+    private ChunkedArray(long length, int chunkBits){
+
+        this.length = length;
+        this.chunkBits = chunkBits;
+        chunkMask = (1L<<chunkBits)-1;
+
+    }
+
+    public static ChunkedArray ofDoubles(long length, int chunkBits){
+
+        ChunkedArray a = new ChunkedArray(length,chunkBits);
+        a.doubles = new double[a.numberOfChunks()][];
+        for (int c=0; c<a.doubles.length; c++){
+            a.doubles[c] = new double[a.chunkLength(c)];
+        }
+        return(a);
+    }
+
+    public static ChunkedArray ofLongs(long length, int chunkBits){
+
+        ChunkedArray a = new ChunkedArray(length,chunkBits);
+        a.longs = new long[a.numberOfChunks()][];
+        for (int c=0; c<a.longs.length; c++){
+            a.longs[c] = new long[a.chunkLength(c)];
+        }
+        return(a);
+    }
+
+    public int numberOfChunks(){
+        return(Math.toIntExact((length+chunkMask)>>>chunkBits));
+    }
+
+    public int chunkLength(int c){
+        return((int) Math.min(length-((long)c<<chunkBits),1L<<chunkBits));
+    }
+
+    public double getDouble(long k){
+        return(doubles[(int)(k>>>chunkBits)][(int)(k&chunkMask)]);
+    }
+
+    public void setDouble(long k, double value){
+        doubles[(int)(k>>>chunkBits)][(int)(k&chunkMask)] = value;
+    }
+
+    public long getLong(long k){
+        return(longs[(int)(k>>>chunkBits)][(int)(k&chunkMask)]);
+    }
+
+    public void setLong(long k, long value){
+        longs[(int)(k>>>chunkBits)][(int)(k&chunkMask)] = value;
+    }
+
+    public void fill(double value){
+
+        for (double[] chunk : doubles){
+            java.util.Arrays.fill(chunk,value);
+        }
+
+    }
+
+    public void copyFrom(ChunkedArray a){
+        //copies the elements of an array of the same length
+        //and chunk size
+
+        for (int c=0; c<doubles.length; c++){
+            System.arraycopy(a.doubles[c],0,doubles[c],0,doubles[c].length);
+        }
+
+    }
+
+    public void moveDown(long from, long to, long count){
+        //moves the elements from,...,from+count-1 to
+        //to,...,to+count-1, where to<=from. the pieces are
+        //copied in order, so no element is overwritten before
+        //it is moved.
+
+        long done=0;
+        int piece,cf,ct,of,ot;
+        while (done<count){
+            cf = (int)((from+done)>>>chunkBits);
+            of = (int)((from+done)&chunkMask);
+            ct = (int)((to+done)>>>chunkBits);
+            ot = (int)((to+done)&chunkMask);
+            piece = (int) Math.min(count-done,(1L<<chunkBits)-Math.max(of,ot));
+            if (doubles!=null){
+                System.arraycopy(doubles[cf],of,doubles[ct],ot,piece);
+            }else{
+                System.arraycopy(longs[cf],of,longs[ct],ot,piece);
+            }
+            done += piece;
+        }
+
+    }
+
+    public long bytes(){
+        return(length*8);
+    }
+
+}
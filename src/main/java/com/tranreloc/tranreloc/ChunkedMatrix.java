@@ -0,0 +1,291 @@
+/*
+ * Copyright 2022 Anders Reenberg Andersen.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.tranreloc.tranreloc;
+
+/**
+ *
+ * @author Anders Reenberg Andersen
+ */
+
+//Class for the transition rate matrix of a state space with more
+//states or elements than an array holds. The layout is the CSR
+//format of TransitionRateMatrix, but the row pointers, column
+//indices, rates and diagonal are chunked arrays indexed by long.
+//The rows are generated by TransitionRateMatrix.rowElements.
+
+public class ChunkedMatrix {
+
+    StateSpace S;
+    long n; //number of states
+    int chunkBits; //elements per chunk (2^chunkBits)
+
+    ChunkedArray rowPtr; //n+1 longs
+    ChunkedArray columnIndices; //longs
+    ChunkedArray rates;
+    ChunkedArray diagonal;
+    double mxRate; //use for uniformization
+    boolean transposed; //the rows hold the incoming transitions
+    boolean embedded; //the rates are scaled to the embedded chain
+
+    ParallelExecutor executor; //generates and multiplies the rows in blocks
+
+    public ChunkedMatrix(StateSpace S, ParallelExecutor executor, int chunkBits){
+
+        this.S = S;
+        this.executor = executor;
+        this.chunkBits = chunkBits;
+        n = S.size;
+
+    }
+
+    public void generateMatrix(){
+        //as TransitionRateMatrix.generateBlocks: each thread
+        //walks a block of rows with its own copy of the state
+        //space. a counting pass bounds the length of each block,
+        //the arrays are allocated once, each thread writes its
+        //rows into its slice, and the slices are moved together.
+
+        System.out.print("Generating transition rate matrix (" + n + " states in chunks)...");
+
+        int nBlocks = (int) Math.max(1,Math.min(executor.getNumberOfThreads(),n));
+        long[] bounds = new long[(nBlocks+1)];
+        for (int b=1; b<=nBlocks; b++){
+            bounds[b] = multiplyDivide(n,b,nBlocks);
+        }
+        int[] blockIds = blockIds(nBlocks);
+
+        rowPtr = ChunkedArray.ofLongs(n+1,chunkBits);
+        diagonal = ChunkedArray.ofDoubles(n,chunkBits);
+
+        //jumps of each block
+        long[] start = new long[(nBlocks+1)];
+        executor.forEachBlock(blockIds,(b,bEnd) -> {
+            StateSpace local = new StateSpace(S);
+            local.setState(bounds[b]);
+            long jumps=0;
+            for (long i=bounds[b]; i<bounds[(b+1)]; i++){
+                local.currentTotalJumps();
+                jumps += local.ctjumps;
+                local.nextState();
+            }
+            start[(b+1)] = jumps;
+        });
+
+        //first element of each slice
+        for (int b=0; b<nBlocks; b++){
+            start[(b+1)] += start[b];
+        }
+        columnIndices = ChunkedArray.ofLongs(start[nBlocks],chunkBits);
+        rates = ChunkedArray.ofDoubles(start[nBlocks],chunkBits);
+
+        //each thread writes its rows from the start of its slice
+        long[] end = new long[nBlocks];
+        double[] blockMxRate = new double[nBlocks];
+        executor.forEachBlock(blockIds,(b,bEnd) -> {
+            TransitionRateMatrix generator = new TransitionRateMatrix(new StateSpace(S));
+            generator.S.setState(bounds[b]);
+            double mx = Double.MIN_VALUE;
+            long k = start[b];
+            int len;
+            for (long i=bounds[b]; i<bounds[(b+1)]; i++){
+                len = generator.rowElements();
+                for (int j=0; j<len; j++){
+                    columnIndices.setLong(k+j,generator.rowColumns[j]);
+                    rates.setDouble(k+j,generator.rowRates[j]);
+                }
+                k += len;
+                rowPtr.setLong(i+1,k);
+                diagonal.setDouble(i,generator.rowDiagonal);
+                mx = Math.max(mx,-generator.rowDiagonal);
+                generator.S.nextState();
+            }
+            end[b] = k;
+            blockMxRate[b] = mx;
+        });
+
+        //close the gaps left by merged jumps. the elements only
+        //move toward the front, so the slices are moved in order.
+        long[] shift = new long[nBlocks];
+        long next=0;
+        mxRate = Double.MIN_VALUE;
+        for (int b=0; b<nBlocks; b++){
+            shift[b] = start[b]-next;
+            if (shift[b]>0){
+                columnIndices.moveDown(start[b],next,end[b]-start[b]);
+                rates.moveDown(start[b],next,end[b]-start[b]);
+            }
+            next += end[b]-start[b];
+            mxRate = Math.max(mxRate,blockMxRate[b]);
+        }
+        executor.forEachBlock(blockIds,(b,bEnd) -> {
+            if (shift[b]>0){
+                for (long i=bounds[b]; i<bounds[(b+1)]; i++){
+                    rowPtr.setLong(i+1,rowPtr.getLong(i+1)-shift[b]);
+                }
+            }
+        });
+
+        System.out.println(" done (" + next + " elements, " + bytes()/1000000 + " MB).");
+
+    }
+
+    public long numberOfNonZeros(){
+        //off-diagonal elements only
+        return(rowPtr.getLong(n));
+    }
+
+    public long[] partitionRows(int nBlocks){
+        //row blocks with roughly the same number of elements,
+        //as ParallelExecutor.partitionRows. the diagonal counts
+        //as one element in each row. the rows are searched by
+        //bisection, since the row pointers increase.
+
+        long[] bounds = new long[(nBlocks+1)];
+        long total = numberOfNonZeros()+n;
+        long target,lo,hi,mid;
+        for (int b=1; b<nBlocks; b++){
+            target = multiplyDivide(total,b,nBlocks);
+            lo = bounds[(b-1)];
+            hi = n;
+            while (lo<hi){
+                mid = (lo+hi)>>>1;
+                if (rowPtr.getLong(mid)+mid<target){
+                    lo = mid+1;
+                }else{
+                    hi = mid;
+                }
+            }
+            bounds[b] = lo;
+        }
+        bounds[nBlocks] = n;
+
+        return(bounds);
+    }
+
+    public void transposeTransitionMatrix(){
+        //counting sort of the elements by column, as in
+        //TransitionRateMatrix. the pointer of each column is
+        //advanced while its elements are inserted and moved
+        //back afterwards, so only one array of n+1 longs is
+        //added to the new elements.
+
+        System.out.print("Transposing...");
+
+        long nnz = numberOfNonZeros();
+        ChunkedArray tempPtr = ChunkedArray.ofLongs(n+1,chunkBits);
+        ChunkedArray tempIndices = ChunkedArray.ofLongs(nnz,chunkBits);
+        ChunkedArray tempRates = ChunkedArray.ofDoubles(nnz,chunkBits);
+
+        //count the elements in each column
+        long col;
+        for (long k=0; k<nnz; k++){
+            col = columnIndices.getLong(k);
+            tempPtr.setLong(col+1,tempPtr.getLong(col+1)+1);
+        }
+        for (long sidx=0; sidx<n; sidx++){
+            tempPtr.setLong(sidx+1,tempPtr.getLong(sidx+1)+tempPtr.getLong(sidx));
+        }
+
+        //insert values (rows are visited in order, so the
+        //column indices of each transposed row stay sorted)
+        long dest,jEnd,jidx=0;
+        for (long sidx=0; sidx<n; sidx++){
+            jEnd = rowPtr.getLong(sidx+1);
+            for (; jidx<jEnd; jidx++){
+                col = columnIndices.getLong(jidx);
+                dest = tempPtr.getLong(col);
+                tempIndices.setLong(dest,sidx);
+                tempRates.setDouble(dest,rates.getDouble(jidx));
+                tempPtr.setLong(col,dest+1);
+            }
+        }
+        for (long sidx=n; sidx>0; sidx--){
+            tempPtr.setLong(sidx,tempPtr.getLong(sidx-1));
+        }
+        tempPtr.setLong(0,0);
+
+        //the diagonal is unaffected by the transposition
+        rowPtr = tempPtr;
+        columnIndices = tempIndices;
+        rates = tempRates;
+        transposed = !transposed;
+
+        System.out.println(" done.");
+
+    }
+
+    public void convertToEmbeddedChain(){
+
+        System.out.print("Converting to embedded chain...");
+
+        double delta_t = 1.0/mxRate;
+        for (double[] chunk : rates.doubles){ //scale all transitions
+            for (int k=0; k<chunk.length; k++){
+                chunk[k] *= delta_t;
+            }
+        }
+        for (double[] chunk : diagonal.doubles){ //scale and add 1 to diagonal
+            for (int i=0; i<chunk.length; i++){
+                chunk[i] = chunk[i]*delta_t+1.0;
+            }
+        }
+        embedded = true;
+
+        System.out.println(" done.");
+
+    }
+
+    public void multiply(ChunkedArray x, ChunkedArray y, long fromRow, long toRow){
+        //y = P^T*x on the rows fromRow,...,toRow-1 for the
+        //transposed embedded chain
+
+        double sm;
+        long jEnd,jidx = rowPtr.getLong(fromRow);
+        for (long i=fromRow; i<toRow; i++){
+            sm = diagonal.getDouble(i)*x.getDouble(i);
+            jEnd = rowPtr.getLong(i+1);
+            for (; jidx<jEnd; jidx++){
+                sm += rates.getDouble(jidx)*x.getDouble(columnIndices.getLong(jidx));
+            }
+            y.setDouble(i,sm);
+        }
+
+    }
+
+    public long bytes(){
+        //heap memory of the stored matrix
+        return(rowPtr.bytes()+columnIndices.bytes()+rates.bytes()+diagonal.bytes());
+    }
+
+    static int[] blockIds(int nBlocks){
+        //bounds 0,1,...,nBlocks, such that the executor passes
+        //the index of a block instead of its rows (which are
+        //indexed by long)
+
+        int[] ids = new int[(nBlocks+1)];
+        for (int b=0; b<=nBlocks; b++){
+            ids[b] = b;
+        }
+        return(ids);
+    }
+
+    static long multiplyDivide(long a, int b, int c){
+        //a*b/c without overflow for a below 2^62
+        return((a/c)*b+((a%c)*b)/c);
+    }
+
+}
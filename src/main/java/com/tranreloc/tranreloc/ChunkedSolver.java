@@ -0,0 +1,125 @@
+/*
+ * Copyright 2022 Anders Reenberg Andersen.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.tranreloc.tranreloc;
+
+/**
+ *
+ * @author Anders Reenberg Andersen
+ */
+
+//Class for solving the state distribution of a chunked matrix
+//(see ChunkedMatrix) by uniformization. The iterations are those
+//of StateDistSolver without truncation, steady-state detection
+//or single precision. The row blocks are multiplied in parallel.
+
+public class ChunkedSolver {
+
+    ParallelExecutor executor;
+    PoissonWeights poisson; //reused across solves
+
+    //workspace (reused while the number of states is unchanged)
+    ChunkedArray yOld;
+    ChunkedArray yNew;
+    double scale; //Poisson weight of the current iteration
+
+    int matVecs; //matrix-vector products in the latest solve
+    double solveTime; //seconds used by the latest solve
+
+    public ChunkedSolver(){
+
+        executor = new ParallelExecutor(1);
+        poisson = new PoissonWeights();
+
+    }
+
+    public void setParallelExecutor(ParallelExecutor executor){
+
+        this.executor = executor;
+
+    }
+
+    public int getMatrixVectorProducts(){
+        return(matVecs);
+    }
+
+    public double getSolveTime(){
+        return(solveTime);
+    }
+
+    public void uniformization(ChunkedMatrix tranMat, ChunkedStateDistribution stateDist,
+            double t, double epsilon){
+
+        long startTime = System.currentTimeMillis();
+        if (!tranMat.transposed){
+            tranMat.transposeTransitionMatrix();
+        }
+        if (!tranMat.embedded){
+            tranMat.convertToEmbeddedChain();
+        }
+        poisson.compute(tranMat.mxRate*t,epsilon);
+
+        System.out.println("Uniformization requires " + poisson.right + " iterations (accumulating from " + poisson.left + ").");
+        System.out.print("Solving...");
+
+        ChunkedArray dist = stateDist.stateDist;
+        if (yOld==null || yOld.length!=dist.length || yOld.chunkBits!=dist.chunkBits){
+            yOld = ChunkedArray.ofDoubles(dist.length,dist.chunkBits);
+            yNew = ChunkedArray.ofDoubles(dist.length,dist.chunkBits);
+        }
+        long[] bounds = tranMat.partitionRows(executor.getNumberOfThreads());
+        int[] blockIds = ChunkedMatrix.blockIds(bounds.length-1);
+        matVecs = 0;
+
+        //the term k=0
+        yOld.copyFrom(dist);
+        scale = poisson.weight(0);
+        for (double[] chunk : dist.doubles){
+            for (int i=0; i<chunk.length; i++){
+                chunk[i] *= scale;
+            }
+        }
+
+        //iterate
+        ChunkedArray swap;
+        for (int k=1; k<=poisson.right; k++){
+            scale = poisson.weight(k);
+
+            //the row blocks are multiplied in parallel, and each
+            //block adds its rows to the distribution
+            executor.forEachBlock(blockIds,(b,bEnd) -> {
+                tranMat.multiply(yOld,yNew,bounds[b],bounds[(b+1)]);
+                if (scale>0){
+                    for (long i=bounds[b]; i<bounds[(b+1)]; i++){
+                        dist.setDouble(i,dist.getDouble(i)+scale*yNew.getDouble(i));
+                    }
+                }
+            });
+            matVecs++;
+
+            //the new iterate becomes the old one
+            swap = yOld;
+            yOld = yNew;
+            yNew = swap;
+        }
+
+        stateDist.normalizeDist();
+        System.out.println(" done.");
+        solveTime = (double) (System.currentTimeMillis()-startTime)/1000.0;
+
+    }
+
+}
@@ -0,0 +1,152 @@
+/*
+ * Copyright 2022 Anders Reenberg Andersen.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.tranreloc.tranreloc;
+
+/**
+ *
+ * @author Anders Reenberg Andersen
+ */
+
+//Class for the state distribution of a state space with more
+//states than an array holds (see ChunkedMatrix). The states are
+//visited in blocks, each with its own copy of the state space,
+//and the per-state probabilities are those of StateDistribution.
+
+public class ChunkedStateDistribution {
+
+    ChunkedArray stateDist;
+    StateSpace S;
+    ParallelExecutor executor; //visits the states in blocks
+    int chunkBits; //elements per chunk (2^chunkBits)
+
+    public ChunkedStateDistribution(StateSpace S, ParallelExecutor executor, int chunkBits){
+
+        this.S = S;
+        this.executor = executor;
+        this.chunkBits = chunkBits;
+
+    }
+
+    public void setOccupiedCapacity(int[] occupied){
+        //as StateDistribution.setOccupiedCapacity
+
+        stateDist = ChunkedArray.ofDoubles(S.size,chunkBits);
+        long[] bounds = stateBlocks();
+        executor.forEachBlock(ChunkedMatrix.blockIds(bounds.length-1),(b,bEnd) -> {
+            StateSpace local = new StateSpace(S);
+            local.setState(bounds[b]);
+            for (long sidx=bounds[b]; sidx<bounds[(b+1)]; sidx++){
+                stateDist.setDouble(sidx,StateDistribution.occupiedProbability(local,occupied));
+                local.nextState();
+            }
+        });
+
+    }
+
+    public void newStateSpace(StateSpace newS){
+        //change to a state space with other capacities by the
+        //fast method of StateDistribution (the accurate method
+        //compares every pair of states)
+
+        System.out.print("Changing state space (fast method)...");
+
+        double[][] levelProb = StateDistribution.levelProbabilities(S,newS,getMarginalStateDists());
+        S = newS;
+        stateDist = ChunkedArray.ofDoubles(S.size,chunkBits);
+        long[] bounds = stateBlocks();
+        executor.forEachBlock(ChunkedMatrix.blockIds(bounds.length-1),(b,bEnd) -> {
+            StateSpace local = new StateSpace(S);
+            local.setState(bounds[b]);
+            double prob;
+            for (long sidx=bounds[b]; sidx<bounds[(b+1)]; sidx++){
+                prob=1.0;
+                for (int assetIdx=0; assetIdx<local.assets.length; assetIdx++){
+                    prob *= levelProb[assetIdx][local.assets[assetIdx].Kuse];
+                }
+                stateDist.setDouble(sidx,prob);
+                local.nextState();
+            }
+        });
+
+        System.out.println(" done.");
+
+    }
+
+    public void normalizeDist(){
+
+        double sm=0;
+        for (double[] chunk : stateDist.doubles){
+            for (int i=0; i<chunk.length; i++){
+                sm+=chunk[i];
+            }
+        }
+        for (double[] chunk : stateDist.doubles){
+            for (int i=0; i<chunk.length; i++){
+                chunk[i]/=sm;
+            }
+        }
+
+    }
+
+    public double[][] getMarginalStateDists(){
+        //returns the marginal state distributions for each
+        //asset. each block sums its own marginals, which are
+        //added in the order of the blocks.
+
+        long[] bounds = stateBlocks();
+        int nBlocks = bounds.length-1;
+        double[][][] blockDist = new double[nBlocks][S.assets.length][];
+        executor.forEachBlock(ChunkedMatrix.blockIds(nBlocks),(b,bEnd) -> {
+            StateSpace local = new StateSpace(S);
+            for (int assetIdx=0; assetIdx<S.assets.length; assetIdx++){
+                blockDist[b][assetIdx] = new double[(S.assets[assetIdx].capacity+1)];
+            }
+            local.setState(bounds[b]);
+            double p;
+            for (long sidx=bounds[b]; sidx<bounds[(b+1)]; sidx++){
+                p = stateDist.getDouble(sidx);
+                for (int assetIdx=0; assetIdx<S.assets.length; assetIdx++){
+                    blockDist[b][assetIdx][local.assets[assetIdx].Kuse] += p;
+                }
+                local.nextState();
+            }
+        });
+
+        double[][] margDist = blockDist[0];
+        for (int b=1; b<nBlocks; b++){
+            for (int assetIdx=0; assetIdx<S.assets.length; assetIdx++){
+                for (int i=0; i<margDist[assetIdx].length; i++){
+                    margDist[assetIdx][i] += blockDist[b][assetIdx][i];
+                }
+            }
+        }
+
+        return(margDist);
+    }
+
+    private long[] stateBlocks(){
+        //one block of states per thread
+
+        int nBlocks = (int) Math.max(1,Math.min(executor.getNumberOfThreads(),S.size));
+        long[] bounds = new long[(nBlocks+1)];
+        for (int b=1; b<=nBlocks; b++){
+            bounds[b] = ChunkedMatrix.multiplyDivide(S.size,b,nBlocks);
+        }
+        return(bounds);
+    }
+
+}
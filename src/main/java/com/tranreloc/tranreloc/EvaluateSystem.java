@@ -40,6 +40,43 @@ public class EvaluateSystem {
     
     CustomerRelocationMap relMap;
     
+    ParallelExecutor executor; //shared by the solvers of all segments
+    StateDistSolver solver; //reused by all segments to keep its workspace
+    KrylovSolver krylovSolver;
+    ODESolver odeSolver;
+    StationarySolver stationarySolver;
+    PartitionedSolver partitionedSolver;
+    ChunkedSolver chunkedSolver; //solves the sequences whose state spaces do not fit in arrays
+    WorkerPool workers; //processes holding the rows of the matrix (null: this process)
+    boolean reorderStates; //solve a stored matrix in reverse Cuthill-McKee order
+    String solverMethod; //"auto", "uniformization", "krylov", "ode", "gauss-seidel", "sor" or "iad"
+    SolverSelector selector; //chooses the method of each segment when "auto"
+    
+    double tolerance; //tolerance of the solver in each segment
+    double segmentLength; //duration of each segment
+    double[] segmentDurations; //duration of each segment (null: segmentLength for all)
+    double errorBudget; //total tolerance over all segments (non-positive: tolerance in each)
+    double[] segmentTolerances; //share of the error budget of each segment
+    double currentLength; //duration of the segment being solved
+    double currentTolerance; //tolerance of the segment being solved
+    
+    boolean singlePrecision; //store the embedded chain and iterates as float
+    boolean precisionReport; //compare single precision results to double precision
+    String matrixLayout; //"csr", "free", "kronecker" or "disk"
+    java.io.File storageDirectory; //memory-mapped storage of the matrix (null: heap)
+    double truncationThreshold; //probability below which states are dropped (non-positive: none)
+    double discardedMass; //probability dropped in the latest sequence
+    
+    //distributions reported within each segment
+    double[] outputTimes; //times after the start of each segment (null: only the end)
+    StateDistribution[] segmentOutputs; //distributions at the output times of the latest segment
+    AggregatedResults timeRes; //results at the output times and segment ends
+    
+    //chunked storage (ChunkedMatrix) of the state spaces that do
+    //not fit in arrays. it is only forced for the tests.
+    int chunkBits; //elements per chunk
+    boolean forceChunked; //use the chunked storage for any state space
+    
     
 //    public EvaluateSystem(int nAssets,CustomerRelocationMap relMap){
 //        
@@ -61,6 +98,268 @@ public class EvaluateSystem {
         this.phDists = phDists;
         
         res = new AggregatedResults(capacity.length);
+        executor = new ParallelExecutor(1);
+        solver = new StateDistSolver();
+        krylovSolver = new KrylovSolver();
+        odeSolver = new ODESolver();
+        stationarySolver = new StationarySolver();
+        partitionedSolver = new PartitionedSolver();
+        chunkedSolver = new ChunkedSolver();
+        chunkBits = ChunkedArray.CHUNK_BITS;
+        selector = new SolverSelector();
+        solverMethod = "uniformization";
+        matrixLayout = "csr";
+        tolerance = 1e-6;
+        segmentLength = 1.0;
+        errorBudget = -1;
+        
+    }
+    
+    public void setSolverMethod(String solverMethod){
+        //method used to solve the state distribution of
+        //each segment. "uniformization", "krylov" and "ode"
+        //give the distribution at the end of the segment,
+        //while "gauss-seidel", "sor" and "iad" give the
+        //stationary distribution for the parameters of the
+        //segment.
+        //"auto" selects a method for each segment.
+        
+        if (solverMethod.equals("auto") || solverMethod.equals("uniformization")
+                || solverMethod.equals("krylov") || solverMethod.equals("ode")
+                || solverMethod.equals("gauss-seidel") || solverMethod.equals("sor")
+                || solverMethod.equals("iad")){
+            this.solverMethod = solverMethod;
+        }else{
+            System.out.println("Warning. Unknown solver method: " + solverMethod + "\n"
+                    + "Using uniformization.");
+            this.solverMethod = "uniformization";
+        }
+        
+    }
+    
+    public void setRelaxation(double omega){
+        //relaxation parameter used by the "sor" method
+        
+        stationarySolver.setRelaxation(omega);
+        
+    }
+    
+    public void setStationaryAllowed(boolean stationaryAllowed){
+        //let the "auto" method use the stationary distribution
+        //for segments that are long compared to the slowest rate
+        
+        selector.setStationaryAllowed(stationaryAllowed);
+        
+    }
+    
+    public void setTolerance(double tolerance){
+        
+        this.tolerance = tolerance;
+        
+    }
+    
+    public void setSegmentLength(double segmentLength){
+        
+        this.segmentLength = segmentLength;
+        segmentTolerances = null;
+        
+    }
+    
+    public void setSegmentDurations(double[] segmentDurations){
+        //duration of each segment (overrides the segment length)
+        
+        this.segmentDurations = segmentDurations;
+        segmentTolerances = null;
+        
+    }
+    
+    public void setErrorBudget(double errorBudget){
+        //total tolerance over all segments. the budget is split
+        //between the segments such that the estimated work is
+        //smallest (see allocateErrorBudget). non-positive values
+        //use the tolerance in every segment.
+        
+        this.errorBudget = errorBudget;
+        segmentTolerances = null;
+        
+    }
+    
+    public double segmentDuration(int timeSegment){
+        
+        if (segmentDurations!=null){
+            return(segmentDurations[timeSegment]);
+        }
+        return(segmentLength);
+    }
+    
+    public double segmentStart(int timeSegment){
+        //time from the start of the first segment
+        
+        double start=0;
+        for (int s=0; s<timeSegment; s++){
+            start += segmentDuration(s);
+        }
+        return(start);
+    }
+    
+    public double segmentTolerance(int timeSegment){
+        
+        if (errorBudget<=0){
+            return(tolerance);
+        }
+        if (segmentTolerances==null || segmentTolerances.length!=capacity.length){
+            allocateErrorBudget();
+        }
+        return(segmentTolerances[timeSegment]);
+    }
+    
+    private void allocateErrorBudget(){
+        //the errors of the segments add up in the 1-norm, so the
+        //tolerances must sum to the budget. uniformization needs
+        //about L+z*sqrt(L) products of n states, where L is the
+        //uniformization rate times the duration and z is about
+        //sqrt(2*log(1/tol)). minimizing the sum of n*sqrt(L)*z
+        //gives tolerances proportional to n*sqrt(L)/z. the
+        //rates are bounded from the parameters, and z follows
+        //from a few fixed-point iterations.
+        
+        int nSegments = capacity.length;
+        double[] work = new double[nSegments];
+        double q,n,mx;
+        Asset asset;
+        for (int s=0; s<nSegments; s++){
+            q=0;
+            n=1;
+            for (int assetIdx=0; assetIdx<nAssets; assetIdx++){
+                asset = new Asset(capacity[s][assetIdx],phDists[s][assetIdx],arrivalRates[s][assetIdx]);
+                n *= asset.assetStateSpaceSize;
+                mx=0;
+                for (int didx=0; didx<phDists[s][assetIdx].length; didx++){
+                    for (int ph=0; ph<phDists[s][assetIdx][didx].phaseTypeGenerator.length; ph++){
+                        mx = Math.max(mx,-phDists[s][assetIdx][didx].phaseTypeGenerator[ph][ph]);
+                    }
+                }
+                q += arrivalRates[s][assetIdx]+capacity[s][assetIdx]*mx;
+            }
+            work[s] = Math.max(1e-12,n*Math.sqrt(q*segmentDuration(s)));
+        }
+        
+        segmentTolerances = new double[nSegments];
+        java.util.Arrays.fill(segmentTolerances,errorBudget/nSegments);
+        double sm;
+        for (int it=0; it<3; it++){
+            sm=0;
+            for (int s=0; s<nSegments; s++){
+                segmentTolerances[s] = work[s]/Math.sqrt(2.0*Math.log(1.0/Math.min(0.5,segmentTolerances[s])));
+                sm += segmentTolerances[s];
+            }
+            for (int s=0; s<nSegments; s++){
+                segmentTolerances[s] *= errorBudget/sm;
+            }
+        }
+        
+    }
+    
+    private void beginSegment(int timeSegment){
+        //duration and tolerance used by the solvers
+        
+        currentLength = segmentDuration(timeSegment);
+        currentTolerance = segmentTolerance(timeSegment);
+        if (segmentDurations!=null || errorBudget>0){
+            System.out.println("Duration: " + currentLength + ", tolerance: " + currentTolerance + ".");
+        }
+        
+    }
+    
+    public void setOutputTimes(double[] outputTimes){
+        //times after the start of each segment where the state
+        //distribution is also reported. the results of
+        //evaluateSequence then hold a row for each output time
+        //and for the end of each segment. with uniformization
+        //the output times cost no extra matrix-vector products.
+        
+        if (outputTimes==null){
+            this.outputTimes = null;
+            return;
+        }
+        this.outputTimes = outputTimes.clone();
+        java.util.Arrays.sort(this.outputTimes);
+        
+    }
+    
+    public void setSinglePrecision(boolean singlePrecision, boolean precisionReport){
+        //store the matrix and the iterates of the solvers in
+        //single precision. with the report enabled, each segment
+        //is also solved in double precision and the largest
+        //deviation of the blocking probabilities is printed
+        //(which doubles the computation time).
+        
+        this.singlePrecision = singlePrecision;
+        this.precisionReport = precisionReport;
+        solver.setSinglePrecision(singlePrecision);
+        
+    }
+    
+    public void setWorkers(WorkerPool workers){
+        //split the rows of each segment's matrix between the
+        //worker processes, which solve it by uniformization.
+        //the distributions and the results stay here.
+        
+        this.workers = workers;
+        
+    }
+    
+    public void setStorageDirectory(String directory){
+        //keep the embedded chain of each segment in memory-mapped
+        //files in the directory instead of on the heap (double
+        //precision only). the files are removed once mapped.
+        
+        storageDirectory = new java.io.File(directory);
+        
+    }
+    
+    public void setStateReordering(boolean reorderStates){
+        //renumber the states of each segment by reverse
+        //Cuthill-McKee before solving, which keeps the elements
+        //of each row of a stored matrix close together. the
+        //distributions are returned in the original order. not
+        //used by the stationary methods (gauss-seidel, sor, iad).
+        
+        this.reorderStates = reorderStates;
+        
+    }
+    
+    public void setMatrixLayout(String matrixLayout){
+        //layout of the matrix of each segment. "csr" stores
+        //the matrix on the heap, "free" does not store it,
+        //but generates the transitions from the state index
+        //in each product, and "kronecker" multiplies with the
+        //per-asset generators and the relocation terms. "disk"
+        //writes the matrix to a file in blocks of rows (in the
+        //storage directory) and streams them in each product.
+        //the last three are used by all transient solvers.
+        
+        if (matrixLayout.equals("csr") || matrixLayout.equals("free")
+                || matrixLayout.equals("kronecker") || matrixLayout.equals("disk")){
+            this.matrixLayout = matrixLayout;
+        }else{
+            System.out.println("Warning. Unknown matrix layout: " + matrixLayout + "\n"
+                    + "Using csr.");
+            this.matrixLayout = "csr";
+        }
+        
+    }
+    
+    public void setNumberOfThreads(int nThreads){
+        //number of threads used by the solver
+        
+        executor.shutdown();
+        executor = new ParallelExecutor(nThreads);
+        solver.setParallelExecutor(executor);
+        krylovSolver.setParallelExecutor(executor);
+        odeSolver.setParallelExecutor(executor);
+        stationarySolver.setParallelExecutor(executor);
+        chunkedSolver.setParallelExecutor(executor);
         
     }
     
@@ -77,18 +376,21 @@ public class EvaluateSystem {
     public void changeArrivalRates(double[][] arrivalRates){
         
         this.arrivalRates = arrivalRates;
+        segmentTolerances = null;
         
     }
     
     public void changeCapacity(int[][] capacity){
         
         this.capacity = capacity;
+        segmentTolerances = null;
         
     }
     
     public void changePhaseTypeDists(PhaseTypeDistribution[][][] phDists){
         
         this.phDists = phDists;
+        segmentTolerances = null;
         
     }
     
@@ -96,16 +398,10 @@ public class EvaluateSystem {
         ///evaluate a single segment using the
         //current occupation of the system
         
-        //create the asset objects
-        Asset[] assets = new Asset[nAssets];
-        
-        for (int assetIdx=0; assetIdx<nAssets; assetIdx++){
-            assets[assetIdx] = new Asset(capacity[timeSegment][assetIdx],
-                    phDists[timeSegment][assetIdx],arrivalRates[timeSegment][assetIdx]);
-        }
-        
         //create the state space
-        StateSpace S = new StateSpace(assets,relMap);
+        beginSegment(timeSegment);
+        StateSpace S = createStateSpace(timeSegment);
+        requireArrays(S);
         
         //initialize the state distribution
         StateDistribution stateDist = new StateDistribution();
@@ -115,14 +411,12 @@ public class EvaluateSystem {
         stateDist.setOccupiedCapacity(currentOccupation);
         
         //create the associated transition rate matrix
-        TransitionRateMatrix tranMat = new TransitionRateMatrix(S);
+        TransitionRateMatrix tranMat = createMatrix(S);
         tranMat.generateMatrix();
         
         //evaluate the system at the end of the segment
-        StateDistSolver solver = new StateDistSolver(S,tranMat);
-        double tol = 1e-6; //the uniformization tolerance
-        double t = 1.0;
-        solver.uniformization(stateDist,t,tol);
+        solveSegment(S,tranMat,stateDist);
+        tranMat.close();
         
         return(stateDist);
     }
@@ -138,16 +432,10 @@ public class EvaluateSystem {
         //assumes the parameters have changed since the latest
         //evaluation.
         
-        //create the asset objects
-        Asset[] assets = new Asset[nAssets];
-        
-        for (int assetIdx=0; assetIdx<nAssets; assetIdx++){
-            assets[assetIdx] = new Asset(capacity[timeSegment][assetIdx],
-                    phDists[timeSegment][assetIdx],arrivalRates[timeSegment][assetIdx]);
-        }
-        
         //create the state space
-        StateSpace S = new StateSpace(assets,relMap);
+        beginSegment(timeSegment);
+        StateSpace S = createStateSpace(timeSegment);
+        requireArrays(S);
         
         if (stateDist!=null){
             
@@ -184,30 +472,329 @@ public class EvaluateSystem {
         }
         
         //create the associated transition rate matrix
-        TransitionRateMatrix tranMat = new TransitionRateMatrix(S);
+        TransitionRateMatrix tranMat = createMatrix(S);
         tranMat.generateMatrix();
         
         //evaluate the system at the end of the segment
-        StateDistSolver solver = new StateDistSolver(S,tranMat);
-        double tol = 1e-6; //the uniformization tolerance
-        double t = 1.0;
-        solver.uniformization(stateDist,t,tol);
+        solveSegment(S,tranMat,stateDist);
+        tranMat.close();
         
         return(stateDist);
     }
     
     
+    private StateSpace createStateSpace(int timeSegment){
+        //state space of the assets in the segment
+        
+        Asset[] assets = new Asset[nAssets];
+        
+        for (int assetIdx=0; assetIdx<nAssets; assetIdx++){
+            assets[assetIdx] = new Asset(capacity[timeSegment][assetIdx],
+                    phDists[timeSegment][assetIdx],arrivalRates[timeSegment][assetIdx]);
+        }
+        
+        return(new StateSpace(assets,relMap));
+    }
+    
+    private void requireArrays(StateSpace S){
+        //the distributions of a single segment are arrays
+        
+        if (S.stateSpaceSize<0){
+            throw new IllegalArgumentException("The state space has " + S.size + " states, more than "
+                    + StateSpace.MAX_STATES + " states do not fit in an array. "
+                    + "Use evaluateSequence, which stores such state spaces in chunks.");
+        }
+        
+    }
+    
+    private TransitionRateMatrix createMatrix(StateSpace S){
+        //the stationary methods sweep over the stored rows,
+        //so they always use a stored matrix
+        
+        if (!isStationary(solverMethod)){
+            if (workers!=null){
+                return(new PartitionedMatrix(S,workers));
+            }else if (matrixLayout.equals("free")){
+                return(new MatrixFreeOperator(S));
+            }else if (matrixLayout.equals("kronecker")){
+                return(new KroneckerDescriptor(S));
+            }else if (matrixLayout.equals("disk")){
+                return(new OutOfCoreMatrix(S,storageDirectory));
+            }
+        }
+        return(storedMatrix(S));
+    }
+    
+    private TransitionRateMatrix storedMatrix(StateSpace S){
+        //the rows are generated by the threads of the solver
+        
+        TransitionRateMatrix tranMat = new TransitionRateMatrix(S);
+        tranMat.setParallelExecutor(executor);
+        return(tranMat);
+    }
+    
+    private boolean isStationary(String method){
+        return(method.equals("gauss-seidel") || method.equals("sor") || method.equals("iad"));
+    }
+    
+    public void setTruncationThreshold(double truncationThreshold){
+        //states whose probability falls below the threshold are
+        //dropped by uniformization, which then only multiplies
+        //the rows reachable from the remaining states. the total
+        //dropped probability is reported after each sequence.
+        
+        this.truncationThreshold = truncationThreshold;
+        solver.setTruncationThreshold(truncationThreshold);
+        
+    }
+    
+    private void solveSegment(StateSpace S, TransitionRateMatrix tranMat,
+            StateDistribution stateDist){
+        //advance the state distribution to the end of the segment
+        
+        solveSegment(S,tranMat,new StateDistribution[]{stateDist});
+        
+    }
+    
+    private void solveSegment(StateSpace S, TransitionRateMatrix tranMat,
+            StateDistribution[] stateDists){
+        //advance several state distributions to the end of the
+        //segment with the same matrix
+        
+        String method = solverMethod;
+        if (tranMat instanceof PartitionedMatrix){
+            method = "partitioned"; //the workers solve by uniformization
+        }else if (method.equals("auto")){
+            method = selector.select(S,tranMat,currentLength,currentTolerance);
+        }
+        
+        //the precision of this segment. the fallback below does
+        //not change the precision of the later segments.
+        boolean single = singlePrecision;
+        if (tranMat instanceof MatrixFreeOperator || tranMat instanceof OutOfCoreMatrix
+                || tranMat instanceof PartitionedMatrix){
+            if (isStationary(method)){
+                System.out.println("Warning: The " + method + " method needs a stored matrix. "
+                        + "Generating the matrix.");
+                tranMat = storedMatrix(S);
+                tranMat.generateMatrix();
+            }else if (single){
+                System.out.println("Warning: The " + matrixLayout + " layout is only available in double precision. "
+                        + "Using double precision for this segment.");
+                single = false;
+            }
+        }
+        
+        if (single){
+            tranMat.setSinglePrecision(true);
+        }
+        solver.setSinglePrecision(single);
+        if (storageDirectory!=null){
+            tranMat.setStorageDirectory(storageDirectory);
+        }
+        
+        //renumber the states of a stored matrix. the precision
+        //report solves again with a matrix in the original order,
+        //and the stationary methods aggregate the states in the
+        //order of the state space, so both keep the original order.
+        StateOrdering ordering = null;
+        if (reorderStates && tranMat.getClass()==TransitionRateMatrix.class
+                && !(single && precisionReport) && !isStationary(method)){
+            ordering = new StateOrdering(tranMat);
+            tranMat.permute(ordering);
+            for (StateDistribution stateDist : stateDists){
+                stateDist.stateDist = ordering.toOrdered(stateDist.stateDist);
+            }
+        }
+        
+        advance(S,tranMat,method,single,stateDists);
+        
+        if (ordering!=null){
+            //the marginals are taken in the order of the state space
+            for (StateDistribution stateDist : stateDists){
+                stateDist.stateDist = ordering.toOriginal(stateDist.stateDist);
+            }
+            if (outputTimes!=null && stateDists.length==1){
+                for (StateDistribution output : segmentOutputs){
+                    output.stateDist = ordering.toOriginal(output.stateDist);
+                }
+            }
+        }
+        
+    }
+    
+    private void advance(StateSpace S, TransitionRateMatrix tranMat, String method,
+            boolean single, StateDistribution[] stateDists){
+        
+        //uniformization advances all distributions in one pass
+        if (method.equals("uniformization") && stateDists.length>1 && !precisionReport){
+            solver.setTransitionRateMatrix(S,tranMat);
+            solver.uniformization(stateDists,currentLength,currentTolerance);
+            System.out.println("Solver cost: " + solver.getMatrixVectorProducts()
+                    + " matrix-vector products in " + solver.getSolveTime() + " seconds.");
+            return;
+        }
+        
+        double[] initialDist = null;
+        TransientSolver segmentSolver = getSolver(method);
+        for (StateDistribution stateDist : stateDists){
+            if (single && precisionReport){
+                initialDist = stateDist.stateDist.clone();
+            }
+            
+            segmentSolver.setTransitionRateMatrix(S,tranMat);
+            if (outputTimes!=null && stateDists.length==1){
+                segmentOutputs = solveWithOutputs(segmentSolver,stateDist);
+            }else{
+                segmentSolver.solve(stateDist,currentLength,currentTolerance);
+            }
+            
+            System.out.println("Solver cost: " + segmentSolver.getMatrixVectorProducts()
+                    + " matrix-vector products in " + segmentSolver.getSolveTime() + " seconds.");
+            if (segmentSolver==solver){
+                discardedMass += solver.getDiscardedMass();
+            }
+            
+            if (initialDist!=null){
+                reportPrecision(S,method,initialDist,stateDist);
+            }
+        }
+        
+    }
+    
+    private StateDistribution[] solveWithOutputs(TransientSolver segmentSolver,
+            StateDistribution stateDist){
+        //advances the distribution to the end of the segment and
+        //returns the distributions at the output times within the
+        //segment. uniformization finds them in the same pass, while
+        //the other methods advance a copy from one output time to
+        //the next.
+        
+        double[] times = segmentOutputTimes(currentLength);
+        if (segmentSolver==solver){
+            return(solver.uniformization(stateDist,currentLength,times,currentTolerance));
+        }
+        
+        StateDistribution[] outputs = new StateDistribution[times.length];
+        StateDistribution current = new StateDistribution();
+        current.setStateSpace(stateDist.S);
+        current.setStateDistribution(stateDist.stateDist);
+        double tPrev=0;
+        for (int j=0; j<times.length; j++){
+            segmentSolver.solve(current,times[j]-tPrev,currentTolerance);
+            outputs[j] = new StateDistribution();
+            outputs[j].setStateSpace(stateDist.S);
+            outputs[j].setStateDistribution(current.stateDist);
+            tPrev = times[j];
+        }
+        segmentSolver.solve(stateDist,currentLength,currentTolerance);
+        
+        return(outputs);
+    }
+    
+    private double[] segmentOutputTimes(double length){
+        //distinct output times strictly inside a segment of the
+        //given duration
+        
+        double[] times = new double[outputTimes.length];
+        int m=0;
+        for (int j=0; j<outputTimes.length; j++){
+            if (outputTimes[j]>0 && outputTimes[j]<length &&
+                    (m==0 || outputTimes[j]>times[(m-1)])){
+                times[m] = outputTimes[j];
+                m++;
+            }
+        }
+        return(java.util.Arrays.copyOf(times,m));
+    }
+    
+    private void recordOutputs(int timeSegment, double[] cap, double[][] margDist, double elapsed){
+        //adds the results at the output times of the segment and
+        //at its end. the runtime is attributed to the end.
+        
+        double[] times = segmentOutputTimes(currentLength);
+        double start = segmentStart(timeSegment);
+        for (int j=0; j<times.length; j++){
+            if (segmentOutputs!=null){
+                timeRes.addResults(segmentOutputs[j].getMarginalStateDists(),cap.clone(),0.0,
+                        timeSegment,start+times[j]);
+            }
+        }
+        timeRes.addResults(margDist,cap.clone(),elapsed,timeSegment,start+currentLength);
+        segmentOutputs = null;
+        
+    }
+    
+    private void reportPrecision(StateSpace S, String method, double[] initialDist,
+            StateDistribution stateDist){
+        //solves the segment again in double precision and prints
+        //the largest deviation of the blocking probabilities
+        
+        TransitionRateMatrix reference = new TransitionRateMatrix(S);
+        reference.generateMatrix();
+        StateDistribution referenceDist = new StateDistribution();
+        referenceDist.setStateSpace(S);
+        referenceDist.setStateDistribution(initialDist);
+        
+        solver.setSinglePrecision(false);
+        TransientSolver referenceSolver = getSolver(method);
+        referenceSolver.setTransitionRateMatrix(S,reference);
+        referenceSolver.solve(referenceDist,currentLength,currentTolerance);
+        solver.setSinglePrecision(true);
+        
+        double[][] margDist = stateDist.getMarginalStateDists();
+        double[][] referenceMargDist = referenceDist.getMarginalStateDists();
+        double deviation=0;
+        int l;
+        for (int assetIdx=0; assetIdx<margDist.length; assetIdx++){
+            l = margDist[assetIdx].length-1;
+            deviation = Math.max(deviation,Math.abs(margDist[assetIdx][l]-referenceMargDist[assetIdx][l]));
+        }
+        System.out.println("Single precision: largest deviation of the blocking probabilities is "
+                + deviation + ".");
+        
+    }
+    
+    private TransientSolver getSolver(String method){
+        
+        if (method.equals("partitioned")){
+            return(partitionedSolver);
+        }else if (method.equals("krylov")){
+            return(krylovSolver);
+        }else if (method.equals("ode")){
+            return(odeSolver);
+        }else if (isStationary(method)){
+            stationarySolver.setMethod(method);
+            return(stationarySolver);
+        }
+        return(solver);
+    }
+    
+    
     public void evaluateSequence(int[] currentOccupation){
         //evaluates a sequence of segments
         //starting with a known occupancy
         //of assets
         
+        if (chunkedSequence()){
+            evaluateChunkedSequence(currentOccupation,res);
+            return;
+        }
+        
         double elapsed;
         long startTime;
         boolean newCap;
         
         System.out.println("-------- SEGMENT " + 0 + " --------");
         
+        discardedMass = 0;
+        if (outputTimes!=null){
+            int nRows=0;
+            for (int s=0; s<capacity.length; s++){
+                nRows += segmentOutputTimes(segmentDuration(s)).length+1;
+            }
+            timeRes = new AggregatedResults(nRows);
+        }
         startTime = System.currentTimeMillis();
         
         StateDistribution stateDist = evaluateSingleSegment(currentOccupation,0);
@@ -220,6 +807,9 @@ public class EvaluateSystem {
             cap[i]=(double)capacity[0][i];
         }
         res.addResults(margDist,cap,elapsed);
+        if (outputTimes!=null){
+            recordOutputs(0,cap,margDist,elapsed);
+        }
         
 //        for (int assetIdx=0; assetIdx<margDist.length; assetIdx++){
 //            System.out.println("Asset Idx:");
@@ -251,6 +841,9 @@ public class EvaluateSystem {
                 
                 margDist = stateDist.getMarginalStateDists();
                 res.addResults(margDist,cap,elapsed);
+                if (outputTimes!=null){
+                    recordOutputs(timeSegment,cap,margDist,elapsed);
+                }
                 
 //                for (int assetIdx=0; assetIdx<margDist.length; assetIdx++){
 //                    System.out.println("Asset Idx:");
@@ -263,14 +856,178 @@ public class EvaluateSystem {
             }
         }
         
+        if (truncationThreshold>0){
+            //each segment changes the distribution by at most twice
+            //its dropped probability (dropping and normalizing)
+            System.out.println("Truncation: " + discardedMass + " probability discarded "
+                    + "(error bound " + 2*discardedMass + ").");
+        }
+        
+    }
+    
+    public AggregatedResults[] evaluateScenarios(int[][] occupations){
+        //evaluates the sequence of segments for several initial
+        //occupancies of the assets. the matrix of each segment is
+        //generated once for all scenarios, and with uniformization
+        //the scenarios are solved together. the runtime of each
+        //segment is divided equally between the scenarios.
+        
+        int nScenarios = occupations.length;
+        if (chunkedSequence()){
+            //each scenario is solved on its own
+            AggregatedResults[] results = new AggregatedResults[nScenarios];
+            for (int r=0; r<nScenarios; r++){
+                results[r] = new AggregatedResults(capacity.length);
+                evaluateChunkedSequence(occupations[r],results[r]);
+            }
+            return(results);
+        }
+        if (outputTimes!=null){
+            System.out.println("Warning: Output times are only reported for a single scenario.");
+        }
+        AggregatedResults[] results = new AggregatedResults[nScenarios];
+        StateDistribution[] stateDists = new StateDistribution[nScenarios];
+        for (int r=0; r<nScenarios; r++){
+            results[r] = new AggregatedResults(capacity.length);
+        }
+        
+        double elapsed;
+        long startTime;
+        boolean newCap;
+        double[] cap = new double[nAssets];
+        
+        for (int timeSegment=0; timeSegment<capacity.length; timeSegment++){
+            
+            System.out.println("-------- SEGMENT " + timeSegment + " --------");
+            
+            startTime = System.currentTimeMillis();
+            
+            newCap = false;
+            for (int i=0; i<nAssets; i++){
+                if (timeSegment>0 && capacity[timeSegment][i]!=capacity[(timeSegment-1)][i]){
+                    newCap=true;
+                }
+                cap[i]=(double)capacity[timeSegment][i];
+            }
+            
+            beginSegment(timeSegment);
+            StateSpace S = createStateSpace(timeSegment);
+            for (int r=0; r<nScenarios; r++){
+                if (timeSegment==0){
+                    stateDists[r] = new StateDistribution();
+                    stateDists[r].setStateSpace(S);
+                    stateDists[r].setOccupiedCapacity(occupations[r]);
+                }else if (newCap){
+                    stateDists[r].newStateSpace(S);
+                }
+            }
+            
+            TransitionRateMatrix tranMat = createMatrix(S);
+            tranMat.generateMatrix();
+            solveSegment(S,tranMat,stateDists);
+            tranMat.close();
+            
+            elapsed = (double) (System.currentTimeMillis()-startTime)/1000.0/nScenarios;
+            
+            for (int r=0; r<nScenarios; r++){
+                results[r].addResults(stateDists[r].getMarginalStateDists(),cap.clone(),elapsed);
+            }
+            
+        }
+        
+        return(results);
+    }
+    
+    private boolean chunkedSequence(){
+        //the distribution is carried from segment to segment, so
+        //the whole sequence is chunked if one segment does not
+        //fit in arrays
+        
+        if (forceChunked){
+            return(true);
+        }
+        for (int s=0; s<capacity.length; s++){
+            if (!createStateSpace(s).fitsInArrays()){
+                return(true);
+            }
+        }
+        return(false);
+    }
+    
+    private void evaluateChunkedSequence(int[] currentOccupation, AggregatedResults results){
+        //evaluates a sequence of segments with the matrix and
+        //distribution stored in chunks. these are solved by
+        //uniformization in double precision on the heap.
+        
+        if (!(solverMethod.equals("uniformization") || solverMethod.equals("auto"))
+                || !matrixLayout.equals("csr") || singlePrecision || workers!=null
+                || truncationThreshold>0 || reorderStates || outputTimes!=null
+                || storageDirectory!=null){
+            System.out.println("Warning: The state space does not fit in arrays, so it is stored in chunks "
+                    + "and solved by uniformization in double precision. The solver method, matrix layout, "
+                    + "precision, workers, truncation, reordering, output times and storage directory are ignored.");
+        }
+        
+        double elapsed;
+        long startTime;
+        boolean newCap;
+        double[] cap = new double[nAssets];
+        ChunkedStateDistribution stateDist = null;
+        
+        for (int timeSegment=0; timeSegment<capacity.length; timeSegment++){
+            
+            System.out.println("-------- SEGMENT " + timeSegment + " --------");
+            
+            startTime = System.currentTimeMillis();
+            
+            newCap = false;
+            for (int i=0; i<nAssets; i++){
+                if (timeSegment>0 && capacity[timeSegment][i]!=capacity[(timeSegment-1)][i]){
+                    newCap=true;
+                }
+                cap[i]=(double)capacity[timeSegment][i];
+            }
+            
+            beginSegment(timeSegment);
+            StateSpace S = createStateSpace(timeSegment);
+            if (timeSegment==0){
+                stateDist = new ChunkedStateDistribution(S,executor,chunkBits);
+                stateDist.setOccupiedCapacity(currentOccupation);
+            }else if (newCap){
+                stateDist.newStateSpace(S);
+            }else{
+                System.out.println("State space did not change.");
+            }
+            
+            ChunkedMatrix tranMat = new ChunkedMatrix(S,executor,chunkBits);
+            tranMat.generateMatrix();
+            chunkedSolver.uniformization(tranMat,stateDist,currentLength,currentTolerance);
+            System.out.println("Solver cost: " + chunkedSolver.getMatrixVectorProducts()
+                    + " matrix-vector products in " + chunkedSolver.getSolveTime() + " seconds.");
+            
+            elapsed = (double) (System.currentTimeMillis()-startTime)/1000.0;
+            results.addResults(stateDist.getMarginalStateDists(),cap.clone(),elapsed);
+            
+        }
+        
     }
     
-    public void writeResultsToFile(String fileName){    
-        res.writeResultsToFile(fileName);
+    public void writeResultsToFile(String fileName){
+        //with output times, the file holds a row for each
+        //output time and segment end
+        if (timeRes!=null){
+            timeRes.writeResultsToFile(fileName);
+        }else{
+            res.writeResultsToFile(fileName);
+        }
     }
 
-    public void writeMarginalDistsToFile(String fileName){    
-        res.writeMarginalDistsToFile(fileName);
+    public void writeMarginalDistsToFile(String fileName){
+        if (timeRes!=null){
+            timeRes.writeMarginalDistsToFile(fileName);
+        }else{
+            res.writeMarginalDistsToFile(fileName);
+        }
     }
     
 }
@@ -0,0 +1,191 @@
+/*
+ * Copyright 2022 Anders Reenberg Andersen.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.tranreloc.tranreloc;
+
+/**
+ *
+ * @author Anders Reenberg Andersen
+ */
+
+//Class for multiplying with the (transposed) transition rate
+//matrix in descriptor form:
+//  Q = Q_1 (+) Q_2 (+) ... (+) Q_N + R,
+//where (+) is the Kronecker sum, Q_a is the local generator of
+//asset a (discharges, phase changes and primary arrivals) and R
+//holds the relocations, which only occur in states where some
+//asset is full. The Kronecker sum is multiplied one asset at a
+//time with the shuffle algorithm: the term I (x) Q_a (x) I moves
+//whole runs of reps[a] consecutive states at once, so the inner
+//loops run over contiguous memory. The relocation terms are
+//only evaluated in the boundary states.
+//The local generators and relocation rates are the tables of the
+//matrix-free operator, so the memory grows with the sum of the
+//asset state spaces.
+
+public class KroneckerDescriptor extends MatrixFreeOperator {
+
+    //relocation part of the capacity increase rates (the rates
+    //for the set of blocked assets minus the primary arrivals)
+    double[][][] couplingRate;
+    double[][] couplingTotal;
+
+    public KroneckerDescriptor(StateSpace S){
+
+        super(S);
+
+    }
+
+    @Override
+    public void generateMatrix(){
+
+        System.out.print("Generating Kronecker descriptor...");
+        buildTables();
+
+        //the empty set of blocked assets gives the primary arrivals
+        int nMasks = 1<<nAssets;
+        couplingRate = new double[nAssets][nMasks][];
+        couplingTotal = new double[nAssets][nMasks];
+        for (int assetIdx=0; assetIdx<nAssets; assetIdx++){
+            for (int mask=1; mask<nMasks; mask++){
+                if (upRate[assetIdx][mask]!=null){
+                    couplingRate[assetIdx][mask] = new double[upRate[assetIdx][mask].length];
+                    for (int k=0; k<upRate[assetIdx][mask].length; k++){
+                        couplingRate[assetIdx][mask][k] = upRate[assetIdx][mask][k]-upRate[assetIdx][0][k];
+                    }
+                    couplingTotal[assetIdx][mask] = upTotal[assetIdx][mask]-upTotal[assetIdx][0];
+                }
+            }
+        }
+
+        System.out.println(" done.");
+
+    }
+
+    @Override
+    public void multiply(double[] x, double[] y, int fromRow, int toRow){
+        //y=A*x for the rows fromRow,...,toRow-1, where A is the
+        //transposed generator or the transposed embedded chain
+
+        for (int i=fromRow; i<toRow; i++){
+            y[i] = 0;
+        }
+        for (int assetIdx=0; assetIdx<nAssets; assetIdx++){
+            localProduct(assetIdx,x,y,fromRow,toRow);
+        }
+        couplingProduct(x,y,fromRow,toRow);
+
+        if (embedded){
+            for (int i=fromRow; i<toRow; i++){
+                y[i] = x[i]+rateScale*y[i];
+            }
+        }
+
+    }
+
+    private void localProduct(int assetIdx, double[] x, double[] y, int fromRow, int toRow){
+        //y += (I (x) Q_a^T (x) I)*x for the rows fromRow,...,toRow-1.
+        //the rows are processed in runs where only the assets
+        //after asset a change, so the local state l of asset a
+        //is fixed within a run.
+
+        int right = (int) S.reps[assetIdx];
+        int stride = size[assetIdx]*right;
+        int[] ptr = inPtr[assetIdx];
+        int[] offset = inOffset[assetIdx];
+        double[] rt = inRate[assetIdx];
+        int[] uPtr = upPtr[assetIdx];
+        int[] uOffset = upOffset[assetIdx];
+        int[] code = upCode[assetIdx];
+        double[] arrivals = upRate[assetIdx][0];
+
+        int i=fromRow,rem,l,len,end,off;
+        double out,r;
+        while (i<toRow){
+            rem = i%stride;
+            l = rem/right;
+            len = Math.min(right-rem%right,toRow-i);
+            end = i+len;
+
+            out = internalOut[assetIdx][l];
+            if (!full[assetIdx][l]){
+                out += upTotal[assetIdx][0];
+            }
+            for (int j=i; j<end; j++){
+                y[j] -= out*x[j];
+            }
+            for (int k=ptr[l]; k<ptr[(l+1)]; k++){
+                r = rt[k];
+                off = offset[k];
+                for (int j=i; j<end; j++){
+                    y[j] += r*x[(j+off)];
+                }
+            }
+            for (int k=uPtr[l]; k<uPtr[(l+1)]; k++){
+                r = arrivals[code[k]];
+                if (r!=0){
+                    off = uOffset[k];
+                    for (int j=i; j<end; j++){
+                        y[j] += r*x[(j+off)];
+                    }
+                }
+            }
+
+            i = end;
+        }
+
+    }
+
+    private void couplingProduct(double[] x, double[] y, int fromRow, int toRow){
+        //y += R^T*x for the rows fromRow,...,toRow-1. only rows
+        //where some asset is full can receive relocations, and
+        //only rows where some asset is full relocate customers.
+
+        int[] local = blockLocal(fromRow);
+        int mask,mb,l;
+        int[] ptr,offset,code;
+        double[] rt;
+        double sm;
+        decode(fromRow,local);
+        for (int i=fromRow; i<toRow; i++){
+            mask = blockedMask(local);
+            if (mask!=0){
+                sm = 0;
+                for (int assetIdx=0; assetIdx<nAssets; assetIdx++){
+                    l = local[assetIdx];
+                    mb = mask & ~(1<<assetIdx);
+                    if (mb==0){
+                        continue; //only asset a itself is full
+                    }
+                    ptr = upPtr[assetIdx];
+                    offset = upOffset[assetIdx];
+                    code = upCode[assetIdx];
+                    rt = couplingRate[assetIdx][mb];
+                    for (int k=ptr[l]; k<ptr[(l+1)]; k++){
+                        sm += rt[code[k]]*x[(i+offset[k])];
+                    }
+                    if (!full[assetIdx][l]){
+                        sm -= couplingTotal[assetIdx][mask]*x[i];
+                    }
+                }
+                y[i] += sm;
+            }
+            next(local);
+        }
+
+    }
+
+}
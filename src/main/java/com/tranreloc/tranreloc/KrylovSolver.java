@@ -0,0 +1,435 @@
+/*
+ * Copyright 2022 Anders Reenberg Andersen.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.tranreloc.tranreloc;
+
+/**
+ *
+ * @author Anders Reenberg Andersen
+ */
+
+//Class for solving the state distribution at time t,
+//pi(t) = pi(0)*exp(Q*t), using Krylov subspace projection
+//with adaptive time steps (following Sidje's Expokit).
+//The number of matrix-vector products depends on the
+//spread of the spectrum rather than on the uniformization
+//rate, which pays off for stiff chains.
+
+public class KrylovSolver implements TransientSolver {
+
+    StateSpace S;
+    TransitionRateMatrix tranMat;
+
+    ParallelExecutor executor; //runs the matrix-vector products
+    int[] blocks; //row blocks of the transposed matrix
+    ParallelExecutor.RowBlockTask productTask;
+
+    int m; //dimension of the Krylov subspace
+
+    //workspace (reused across solves)
+    double[][] V; //orthonormal basis of the Krylov subspace
+    double[] w; //current approximation of pi(t)
+    double[] av; //product used for the error estimate
+    double[] productIn,productOut; //vectors of the current product
+
+    int matVecs; //matrix-vector products in the latest solve
+    double solveTime; //seconds used by the latest solve
+    
+    //steps accepted after the largest number of rejections with
+    //a local error above the tolerance (latest solve)
+    int excessSteps;
+    double excessError; //sum of the local errors above the tolerance
+
+    public KrylovSolver(){
+
+        executor = new ParallelExecutor(1);
+        productTask = this::product;
+        m = 30;
+
+    }
+
+    public KrylovSolver(StateSpace S, TransitionRateMatrix tranMat){
+
+        this();
+        setTransitionRateMatrix(S,tranMat);
+
+    }
+
+    public void setTransitionRateMatrix(StateSpace S, TransitionRateMatrix tranMat){
+
+        this.S = S;
+        this.tranMat = tranMat;
+
+    }
+
+    public void setParallelExecutor(ParallelExecutor executor){
+
+        this.executor = executor;
+
+    }
+
+    public void setSubspaceDimension(int m){
+        //larger subspaces allow longer steps, but the
+        //basis needs m+1 vectors of the state space size
+
+        this.m = Math.max(2,m);
+
+    }
+
+    public int getMatrixVectorProducts(){
+        return(matVecs);
+    }
+
+    public double getSolveTime(){
+        return(solveTime);
+    }
+
+    public void solve(StateDistribution stateDist, double t, double epsilon){
+
+        long startTime = System.currentTimeMillis();
+        if (!tranMat.transposed){
+            tranMat.transposeTransitionMatrix();
+        }
+        if (!tranMat.embedded){
+            tranMat.convertToEmbeddedChain();
+        }
+        blocks = tranMat.partitionRows(executor);
+
+        int n = S.stateSpaceSize;
+        int mm = Math.min(m,Math.max(1,(n-1)));
+        ensureWorkspace(n,mm);
+
+        System.out.print("Solving (Krylov)...");
+        int steps = expv(stateDist.stateDist,n,mm,t,epsilon);
+
+        //remove the round-off below zero before normalizing
+        for (int i=0; i<n; i++){
+            stateDist.stateDist[i] = Math.max(0.0,w[i]);
+        }
+        stateDist.normalizeDist();
+        System.out.println(" done (" + steps + " steps, " + matVecs + " matrix-vector products).");
+        if (excessSteps>0){
+            System.out.println("Warning: " + excessSteps + " Krylov steps were accepted above the local error "
+                    + "tolerance after repeated rejections. The error may exceed the tolerance by up to "
+                    + excessError + ".");
+        }
+        solveTime = (double) (System.currentTimeMillis()-startTime)/1000.0;
+
+    }
+
+    private int expv(double[] v, int n, int mm, double t, double tol){
+        //evaluates w = exp(t*A)*v with A the transposed generator
+
+        double anorm = 2.0*tranMat.mxRate; //bound on the infinity-norm of the generator
+        double btol = 1e-7; //tolerance for happy breakdown
+        double gamma = 0.9;
+        double delta = 1.2;
+        int mxrej = 10;
+
+        matVecs = 0;
+        excessSteps = 0;
+        excessError = 0;
+        System.arraycopy(v,0,w,0,n);
+        double beta = norm2(w,n);
+        if (anorm<=0 || beta==0 || t<=0){
+            return(0);
+        }
+
+        double xm = 1.0/mm;
+        double fact = Math.pow((mm+1)/Math.E,(mm+1))*Math.sqrt(2*Math.PI*(mm+1));
+        double tNew = (1.0/anorm)*Math.pow((fact*tol)/(4.0*beta*anorm),xm);
+        tNew = roundStep(tNew);
+
+        double tNow=0,tStep,errLoc=0,avnorm=0,s,phi1,phi2;
+        double[][] H = new double[(mm+2)][(mm+2)];
+        double[][] F;
+        int mb,mx,k1,ireject,nstep=0;
+
+        while (tNow<t){
+
+            nstep++;
+            tStep = Math.min(t-tNow,tNew);
+            k1 = 2;
+            mb = mm;
+
+            for (int i=0; i<(mm+2); i++){
+                java.util.Arrays.fill(H[i],0.0);
+            }
+            for (int i=0; i<n; i++){
+                V[0][i] = w[i]/beta;
+            }
+
+            //Arnoldi process
+            for (int j=0; j<mm; j++){
+                multiply(V[j],V[(j+1)]);
+                for (int i=0; i<=j; i++){
+                    H[i][j] = dot(V[i],V[(j+1)],n);
+                    axpy(-H[i][j],V[i],V[(j+1)],n);
+                }
+                s = norm2(V[(j+1)],n);
+                if (s<btol){
+                    //happy breakdown: the subspace is invariant
+                    k1 = 0;
+                    mb = j+1;
+                    tStep = t-tNow;
+                    break;
+                }
+                H[(j+1)][j] = s;
+                for (int i=0; i<n; i++){
+                    V[(j+1)][i] /= s;
+                }
+            }
+            if (k1!=0){
+                H[(mm+1)][mm] = 1.0;
+                multiply(V[mm],av);
+                avnorm = norm2(av,n);
+            }
+
+            //find an acceptable step size
+            ireject = 0;
+            while (true){
+                mx = mb+k1;
+                F = expm(H,mx,tStep);
+                if (k1==0){
+                    errLoc = btol;
+                    break;
+                }
+                phi1 = Math.abs(beta*F[mm][0]);
+                phi2 = Math.abs(beta*F[(mm+1)][0]*avnorm);
+                if (phi1>10.0*phi2){
+                    errLoc = phi2;
+                    xm = 1.0/mm;
+                }else if (phi1>phi2){
+                    errLoc = (phi1*phi2)/(phi1-phi2);
+                    xm = 1.0/mm;
+                }else{
+                    errLoc = phi1;
+                    xm = 1.0/(mm-1);
+                }
+                if (errLoc<=delta*tStep*tol){
+                    break;
+                }
+                if (ireject>=mxrej){
+                    //the step is accepted, and the error beyond
+                    //the tolerance is recorded
+                    excessSteps++;
+                    excessError += errLoc-delta*tStep*tol;
+                    break;
+                }
+                tStep = roundStep(gamma*tStep*Math.pow((tStep*tol/errLoc),xm));
+                ireject++;
+            }
+
+            //w = beta*V*F(:,0)
+            mx = mb+Math.max(0,(k1-1));
+            java.util.Arrays.fill(w,0,n,0.0);
+            for (int j=0; j<mx; j++){
+                axpy(beta*F[j][0],V[j],w,n);
+            }
+            beta = norm2(w,n);
+
+            tNow += tStep;
+            tNew = roundStep(gamma*tStep*Math.pow((tStep*tol/errLoc),xm));
+        }
+
+        return(nstep);
+    }
+
+    private void multiply(double[] in, double[] out){
+        //out = Q^T*in, evaluated from the stored embedded
+        //chain as mxRate*(P^T*in - in)
+
+        productIn = in;
+        productOut = out;
+        executor.forEachBlock(blocks,productTask);
+        matVecs++;
+
+    }
+
+    private void product(int fromRow, int toRow){
+
+        tranMat.multiply(productIn,productOut,fromRow,toRow);
+        for (int i=fromRow; i<toRow; i++){
+            productOut[i] = tranMat.mxRate*(productOut[i]-productIn[i]);
+        }
+
+    }
+
+    private double roundStep(double step){
+        //rounds the step size to two significant digits
+
+        if (Double.isInfinite(step)){
+            return(step); //the error estimate vanished
+        }
+        double s = Math.pow(10.0,Math.floor(Math.log10(step))-1);
+        return(Math.ceil(step/s)*s);
+    }
+
+    private double dot(double[] a, double[] b, int n){
+        double sm=0;
+        for (int i=0; i<n; i++){
+            sm += a[i]*b[i];
+        }
+        return(sm);
+    }
+
+    private double norm2(double[] a, int n){
+        return(Math.sqrt(dot(a,a,n)));
+    }
+
+    private void axpy(double alpha, double[] a, double[] b, int n){
+        //b = b + alpha*a
+        for (int i=0; i<n; i++){
+            b[i] += alpha*a[i];
+        }
+    }
+
+    private double[][] expm(double[][] H, int size, double t){
+        //matrix exponential of t*H (leading size x size block)
+        //using the irreducible (6,6) Pade approximation
+        //with scaling and squaring
+
+        int p = 6;
+        double[][] A = new double[size][size];
+        double nrm=0,rs;
+        for (int i=0; i<size; i++){
+            rs=0;
+            for (int j=0; j<size; j++){
+                A[i][j] = t*H[i][j];
+                rs += Math.abs(A[i][j]);
+            }
+            nrm = Math.max(nrm,rs);
+        }
+        int sq = 0;
+        if (nrm>0.5){
+            sq = Math.max(0,(int)(Math.log(nrm)/Math.log(2.0))+2);
+            double f = Math.pow(2.0,-sq);
+            for (int i=0; i<size; i++){
+                for (int j=0; j<size; j++){
+                    A[i][j] *= f;
+                }
+            }
+        }
+
+        //numerator and denominator of the Pade approximation
+        double[][] N = identity(size);
+        double[][] D = identity(size);
+        double[][] Ak = identity(size);
+        double c = 1.0;
+        for (int k=1; k<=p; k++){
+            c *= (double)(p-k+1)/(double)(k*(2*p-k+1));
+            Ak = matMul(Ak,A,size);
+            for (int i=0; i<size; i++){
+                for (int j=0; j<size; j++){
+                    N[i][j] += c*Ak[i][j];
+                    D[i][j] += ((k%2==0) ? c : -c)*Ak[i][j];
+                }
+            }
+        }
+
+        double[][] E = solve(D,N,size);
+        for (int k=0; k<sq; k++){
+            E = matMul(E,E,size);
+        }
+
+        return(E);
+    }
+
+    private double[][] identity(int size){
+        double[][] I = new double[size][size];
+        for (int i=0; i<size; i++){
+            I[i][i] = 1.0;
+        }
+        return(I);
+    }
+
+    private double[][] matMul(double[][] A, double[][] B, int size){
+        double[][] C = new double[size][size];
+        for (int i=0; i<size; i++){
+            for (int k=0; k<size; k++){
+                if (A[i][k]!=0){
+                    for (int j=0; j<size; j++){
+                        C[i][j] += A[i][k]*B[k][j];
+                    }
+                }
+            }
+        }
+        return(C);
+    }
+
+    private double[][] solve(double[][] A0, double[][] B0, int size){
+        //solves A*X=B with Gaussian elimination and
+        //partial pivoting
+
+        double[][] A = new double[size][];
+        double[][] B = new double[size][];
+        for (int i=0; i<size; i++){
+            A[i] = A0[i].clone();
+            B[i] = B0[i].clone();
+        }
+
+        int piv;
+        double[] tmp;
+        double f;
+        for (int k=0; k<size; k++){
+            piv = k;
+            for (int i=(k+1); i<size; i++){
+                if (Math.abs(A[i][k])>Math.abs(A[piv][k])){
+                    piv = i;
+                }
+            }
+            tmp = A[k]; A[k] = A[piv]; A[piv] = tmp;
+            tmp = B[k]; B[k] = B[piv]; B[piv] = tmp;
+            for (int i=(k+1); i<size; i++){
+                f = A[i][k]/A[k][k];
+                if (f!=0){
+                    for (int j=k; j<size; j++){
+                        A[i][j] -= f*A[k][j];
+                    }
+                    for (int j=0; j<size; j++){
+                        B[i][j] -= f*B[k][j];
+                    }
+                }
+            }
+        }
+        for (int k=(size-1); k>=0; k--){
+            for (int j=0; j<size; j++){
+                f = B[k][j];
+                for (int i=(k+1); i<size; i++){
+                    f -= A[k][i]*B[i][j];
+                }
+                B[k][j] = f/A[k][k];
+            }
+        }
+
+        return(B);
+    }
+
+    private void ensureWorkspace(int n, int mm){
+        //the basis is only reallocated when the state space
+        //or the subspace dimension grows
+
+        if (V==null || V.length<(mm+1) || V[0].length<n){
+            V = new double[(mm+1)][n];
+        }
+        if (w==null || w.length<n){
+            w = new double[n];
+            av = new double[n];
+        }
+
+    }
+
+}
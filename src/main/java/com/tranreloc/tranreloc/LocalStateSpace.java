@@ -44,7 +44,14 @@ public class LocalStateSpace {
         
         int smAll,sw;
         
-        localStateSpace = new int[(int)stateSpaceSize()][nPhases];
+        //the configurations are listed in an array, so this is
+        //the one size that must stay within an int
+        long size = stateSpaceSize();
+        if (size>StateSpace.MAX_STATES){
+            throw new IllegalArgumentException("The " + size + " configurations of " + c + " servers in "
+                    + nPhases + " phases do not fit in an array.");
+        }
+        localStateSpace = new int[(int) size][nPhases];
         
         localStateSpace[0][0] = c;
         
@@ -101,29 +108,30 @@ public class LocalStateSpace {
         return(binomialCoefficient((c + nPhases-1), (nPhases-1))); 
     }
     
-    private long binomialCoefficient(int n, int k){
-        //From The flying keyboard
-        // 2018 TheFlyingKeyboard and released under MIT License
-        // theflyingkeyboard.net
+    static long binomialCoefficient(int n, int k){
+        //exact binomial coefficient. builds C(k+i,i) for
+        //i=1,...,n-k, where each step divides out the common
+        //factor first, so it only overflows (ArithmeticException)
+        //when the coefficient itself exceeds a long.
         
-        long top = 1;
-        for(int i = n; i > k; --i){
-            top *= i;
+        long r=1,g;
+        for (int i=1; i<=(n-k); i++){
+            g = gcd(r,i);
+            r = Math.multiplyExact(r/g,(long)(k+i)/(i/g));
         }
         
-        return (top / factorial(n - k));
+        return(r);
     }
     
-    private long factorial(int n){
-        //From The flying keyboard
-        // 2018 TheFlyingKeyboard and released under MIT License
-        // theflyingkeyboard.net
+    private static long gcd(long a, long b){
         
-        int fact = 1;
-        for(int i = 2; i <= n; i++){
-            fact *= i;
+        long t;
+        while (b!=0){
+            t = a%b;
+            a = b;
+            b = t;
         }
-        return (fact);
+        return(a);
     }
     
     
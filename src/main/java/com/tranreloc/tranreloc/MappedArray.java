@@ -0,0 +1,116 @@
+/*
+ * Copyright 2022 Anders Reenberg Andersen.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.tranreloc.tranreloc;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ *
+ * @author Anders Reenberg Andersen
+ */
+
+//Class for a double or int array stored outside the Java heap
+//in a memory-mapped file. The heap limit does not apply, the
+//garbage collector never scans the elements, and the operating
+//system can page out the parts that are not in use. A single
+//mapping holds at most 2GB, so the array is mapped in chunks
+//of 2^CHUNK_BITS elements. The file is deleted once it is
+//mapped, so nothing is left behind when the program ends.
+
+public class MappedArray {
+
+    static final int CHUNK_BITS = 27;
+    static final int CHUNK_MASK = (1<<CHUNK_BITS)-1;
+
+    int length;
+    int elementSize; //bytes per element (8 for double, 4 for int)
+    DoubleBuffer[] doubles; //null for an int array
+    IntBuffer[] ints; //null for a double array
+
+    public MappedArray(double[] values, int length, File directory){
+        //copies values[0],...,values[length-1]
+
+        this.length = length;
+        elementSize = 8;
+        MappedByteBuffer[] chunks = map(directory);
+        doubles = new DoubleBuffer[chunks.length];
+        for (int c=0; c<chunks.length; c++){
+            doubles[c] = chunks[c].asDoubleBuffer();
+            doubles[c].put(values,c<<CHUNK_BITS,doubles[c].capacity());
+        }
+
+    }
+
+    public MappedArray(int[] values, int length, File directory){
+        //copies values[0],...,values[length-1]
+
+        this.length = length;
+        elementSize = 4;
+        MappedByteBuffer[] chunks = map(directory);
+        ints = new IntBuffer[chunks.length];
+        for (int c=0; c<chunks.length; c++){
+            ints[c] = chunks[c].asIntBuffer();
+            ints[c].put(values,c<<CHUNK_BITS,ints[c].capacity());
+        }
+
+    }
+
+    private MappedByteBuffer[] map(File directory){
+        //maps the chunks of a new file in the directory
+
+        int nChunks = (int)(((long)length+CHUNK_MASK)>>>CHUNK_BITS);
+        MappedByteBuffer[] chunks = new MappedByteBuffer[nChunks];
+        try {
+            File file = File.createTempFile("tranreloc",".bin",directory);
+            try (RandomAccessFile raf = new RandomAccessFile(file,"rw")){
+                FileChannel channel = raf.getChannel();
+                long offset=0;
+                long bytes;
+                for (int c=0; c<nChunks; c++){
+                    bytes = Math.min(length-((long)c<<CHUNK_BITS),1L<<CHUNK_BITS)*elementSize;
+                    chunks[c] = channel.map(FileChannel.MapMode.READ_WRITE,offset,bytes);
+                    chunks[c].order(ByteOrder.nativeOrder());
+                    offset += bytes;
+                }
+            }finally{
+                //the mappings stay valid after the file is closed
+                //and deleted
+                file.delete();
+            }
+        }catch(IOException e){
+            throw new RuntimeException("Could not map the storage file in " + directory,e);
+        }
+
+        return(chunks);
+    }
+
+    public double getDouble(int k){
+        return(doubles[(k>>>CHUNK_BITS)].get(k&CHUNK_MASK));
+    }
+
+    public int getInt(int k){
+        return(ints[(k>>>CHUNK_BITS)].get(k&CHUNK_MASK));
+    }
+
+}
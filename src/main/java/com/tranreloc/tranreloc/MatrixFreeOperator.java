@@ -0,0 +1,527 @@
+/*
+ * Copyright 2022 Anders Reenberg Andersen.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.tranreloc.tranreloc;
+
+import java.util.Arrays;
+
+/**
+ *
+ * @author Anders Reenberg Andersen
+ */
+
+//Class for multiplying with the (transposed) transition rate
+//matrix without storing it. Each state index is decoded into
+//the local states of the assets (index = sum of local index x
+//reps), and the incoming transitions of the state are generated
+//from small per-asset tables during the product:
+//  - discharges and local phase changes only depend on the local
+//    state of the asset,
+//  - arrivals and relocations increase the capacity use of one
+//    asset, and their rates only depend on the local states and
+//    on which assets are blocked.
+//The relocation rates are evaluated for every set of blocked
+//assets when the tables are built (the relocation map is not
+//safe to query from several threads). The memory use is that of
+//the tables, which grows with the sum of the asset state spaces
+//rather than with the number of transitions.
+
+public class MatrixFreeOperator extends TransitionRateMatrix {
+
+    int nAssets;
+    int[] size; //local state space size of each asset
+
+    //per asset and local state
+    boolean[][] full; //the capacity is fully occupied
+    double[][] internalOut; //rate of discharges and phase changes out of the state
+
+    //incoming discharges and phase changes (CSR over the local states)
+    int[][] inPtr;
+    int[][] inOffset; //source state index minus the state index
+    double[][] inRate;
+
+    //incoming capacity increases (CSR over the local states)
+    int[][] upPtr;
+    int[][] upOffset; //source state index minus the state index
+    int[][] upCode; //distribution and phase entered (phaseOffset[d]+phase)
+    int[][] phaseOffset;
+
+    //rates of the capacity increases of an asset for each set of
+    //blocked assets (bit mask), indexed by upCode. the sets never
+    //contain the asset itself.
+    double[][][] upRate;
+    double[][] upTotal;
+
+    double rateScale; //1/mxRate for the embedded chain (1 for the generator)
+    long nonZeros; //transitions (before merging of equal targets)
+
+    //local states of the rows being multiplied. each row block
+    //of partitionRows has its own array, allocated once.
+    int[] blockRows; //first row of each block
+    int[][] blockLocal;
+    int[] diagonalLocal; //used by generatorDiagonal (called from one thread)
+
+    public MatrixFreeOperator(StateSpace S){
+
+        super(S);
+
+    }
+
+    @Override
+    public void generateMatrix(){
+
+        System.out.print("Generating matrix-free operator...");
+        buildTables();
+        System.out.println(" done.");
+
+    }
+
+    void buildTables(){
+        //local tables of all assets, relocation rates, largest
+        //exit rate and number of transitions
+
+        nAssets = S.assets.length;
+        size = new int[nAssets];
+        full = new boolean[nAssets][];
+        internalOut = new double[nAssets][];
+        inPtr = new int[nAssets][];
+        inOffset = new int[nAssets][];
+        inRate = new double[nAssets][];
+        upPtr = new int[nAssets][];
+        upOffset = new int[nAssets][];
+        upCode = new int[nAssets][];
+        phaseOffset = new int[nAssets][];
+        diagonalLocal = new int[nAssets];
+        blockRows = null;
+
+        for (int assetIdx=0; assetIdx<nAssets; assetIdx++){
+            localTables(assetIdx);
+        }
+        relocationTables();
+        S.resetState();
+
+        //the operator multiplies with the transposed generator
+        transposed = true;
+        embedded = false;
+        rateScale = 1.0;
+
+        //largest exit rate and number of transitions
+        mxRate = Double.MIN_VALUE;
+        nonZeros = 0;
+        int[] local = new int[nAssets];
+        for (int sidx=0; sidx<S.stateSpaceSize; sidx++){
+            mxRate = Math.max(mxRate,outRate(local,blockedMask(local)));
+            for (int assetIdx=0; assetIdx<nAssets; assetIdx++){
+                nonZeros += inPtr[assetIdx][(local[assetIdx]+1)]-inPtr[assetIdx][local[assetIdx]];
+                nonZeros += upPtr[assetIdx][(local[assetIdx]+1)]-upPtr[assetIdx][local[assetIdx]];
+            }
+            next(local);
+        }
+
+    }
+
+    private void localTables(int assetIdx){
+        //walks the local states of one asset and inverts its
+        //transitions, such that each local state lists the
+        //states it can be entered from. the operator is only
+        //built for state spaces that fit in an array, so the
+        //local states and the offsets fit in an int.
+
+        Asset asset = S.assets[assetIdx];
+        int m = (int) asset.assetStateSpaceSize;
+        size[assetIdx] = m;
+        full[assetIdx] = new boolean[m];
+        internalOut[assetIdx] = new double[m];
+
+        phaseOffset[assetIdx] = new int[(asset.nPhases.length+1)];
+        for (int didx=0; didx<asset.nPhases.length; didx++){
+            phaseOffset[assetIdx][(didx+1)] = phaseOffset[assetIdx][didx]+asset.nPhases[didx];
+        }
+
+        //outgoing transitions as (source, target, rate) and
+        //(source, target, code) lists
+        java.util.ArrayList<double[]> internal = new java.util.ArrayList<>();
+        java.util.ArrayList<int[]> up = new java.util.ArrayList<>();
+        int[] count;
+        double rt;
+
+        asset.resetState();
+        for (int l=0; l<m; l++){
+
+            full[assetIdx][l] = (asset.Kuse==asset.capacity);
+
+            //discharges and local phase changes
+            for (int didx=0; didx<asset.nPhases.length; didx++){
+                if (asset.currentState_CapDist(didx)>0){
+                    count = asset.currentState_PhaseType(didx);
+                    for (int phIdx=0; phIdx<asset.nPhases[didx]; phIdx++){
+                        if (count[phIdx]>0){
+                            rt = asset.phDists[didx].exitRates[phIdx]*count[phIdx];
+                            internal.add(new double[]{l,l+asset.delta_capChange(didx,phIdx,"down"),rt});
+                            internalOut[assetIdx][l] += rt;
+                            for (int phIdx_to=0; phIdx_to<asset.nPhases[didx]; phIdx_to++){
+                                rt = asset.phDists[didx].phaseTypeGenerator[phIdx][phIdx_to]*count[phIdx];
+                                if (phIdx!=phIdx_to && rt!=0){
+                                    internal.add(new double[]{l,l+asset.delta_localPhaseChange(didx,phIdx,phIdx_to),rt});
+                                    internalOut[assetIdx][l] += rt;
+                                }
+                            }
+                        }
+                    }
+                }
+            }
+
+            //capacity increases (arrivals or relocations) into
+            //any distribution and phase
+            if (asset.Kuse<asset.capacity){
+                for (int didx=0; didx<asset.nPhases.length; didx++){
+                    for (int phIdx=0; phIdx<asset.nPhases[didx]; phIdx++){
+                        up.add(new int[]{l,l+(int) asset.delta_capChange(didx,phIdx,"up"),
+                            phaseOffset[assetIdx][didx]+phIdx});
+                    }
+                }
+            }
+
+            asset.nextState();
+        }
+        asset.resetState();
+
+        //invert the lists (counting sort on the target)
+        inPtr[assetIdx] = new int[(m+1)];
+        inOffset[assetIdx] = new int[internal.size()];
+        inRate[assetIdx] = new double[internal.size()];
+        for (double[] e : internal){
+            inPtr[assetIdx][((int)e[1]+1)]++;
+        }
+        for (int l=0; l<m; l++){
+            inPtr[assetIdx][(l+1)] += inPtr[assetIdx][l];
+        }
+        int[] next = java.util.Arrays.copyOf(inPtr[assetIdx],m);
+        for (double[] e : internal){
+            inOffset[assetIdx][next[(int)e[1]]] = ((int)e[0]-(int)e[1])*(int) S.reps[assetIdx];
+            inRate[assetIdx][next[(int)e[1]]] = e[2];
+            next[(int)e[1]]++;
+        }
+
+        upPtr[assetIdx] = new int[(m+1)];
+        upOffset[assetIdx] = new int[up.size()];
+        upCode[assetIdx] = new int[up.size()];
+        for (int[] e : up){
+            upPtr[assetIdx][(e[1]+1)]++;
+        }
+        for (int l=0; l<m; l++){
+            upPtr[assetIdx][(l+1)] += upPtr[assetIdx][l];
+        }
+        next = java.util.Arrays.copyOf(upPtr[assetIdx],m);
+        for (int[] e : up){
+            upOffset[assetIdx][next[e[1]]] = (e[0]-e[1])*(int) S.reps[assetIdx];
+            upCode[assetIdx][next[e[1]]] = e[2];
+            next[e[1]]++;
+        }
+
+    }
+
+    private void relocationTables(){
+        //rates of the capacity increases of each asset for each
+        //set of blocked assets: the primary arrivals plus the
+        //customers relocated from the blocked assets
+
+        int nMasks = 1<<nAssets;
+        upRate = new double[nAssets][nMasks][];
+        upTotal = new double[nAssets][nMasks];
+
+        CustomerRelocationMap relMap = S.relMap;
+        Asset to;
+        int[] dists,blocked;
+        double[] distProbs;
+        double p;
+        for (int assetIdx_to=0; assetIdx_to<nAssets; assetIdx_to++){
+            to = S.assets[assetIdx_to];
+            for (int mask=0; mask<nMasks; mask++){
+                if ((mask & (1<<assetIdx_to))!=0){
+                    continue; //the asset must have free capacity
+                }
+                double[] r = new double[phaseOffset[assetIdx_to][to.nPhases.length]];
+                for (int phIdx=0; phIdx<to.nPhases[0]; phIdx++){
+                    r[phIdx] += to.arrivalRatePH[phIdx];
+                }
+                blocked = blockedAssets(mask);
+                for (int assetIdx=0; assetIdx<nAssets; assetIdx++){
+                    if ((mask & (1<<assetIdx))!=0 && relMap.canRelocateToAsset(assetIdx,assetIdx_to)){
+                        p = S.assets[assetIdx].arrivalRate*relMap.getRelocationProbToAsset(assetIdx,assetIdx_to,blocked);
+                        dists = relMap.getRelocationToDist(assetIdx,assetIdx_to);
+                        distProbs = relMap.getRelocationProbToDist(assetIdx,assetIdx_to);
+                        for (int didx=0; didx<dists.length; didx++){
+                            for (int phIdx=0; phIdx<to.nPhases[dists[didx]]; phIdx++){
+                                r[(phaseOffset[assetIdx_to][dists[didx]]+phIdx)] += p*distProbs[didx]*
+                                        to.phDists[dists[didx]].initialDistribution[phIdx];
+                            }
+                        }
+                    }
+                }
+                upRate[assetIdx_to][mask] = r;
+                for (int k=0; k<r.length; k++){
+                    upTotal[assetIdx_to][mask] += r[k];
+                }
+            }
+        }
+
+    }
+
+    private int[] blockedAssets(int mask){
+        //indices of the assets in the set (in increasing order)
+
+        int[] blocked = new int[Integer.bitCount(mask)];
+        int n=0;
+        for (int assetIdx=0; assetIdx<nAssets; assetIdx++){
+            if ((mask & (1<<assetIdx))!=0){
+                blocked[n] = assetIdx;
+                n++;
+            }
+        }
+        return(blocked);
+    }
+
+    void decode(int sidx, int[] local){
+        //local state of each asset
+
+        for (int assetIdx=(nAssets-1); assetIdx>=0; assetIdx--){
+            local[assetIdx] = sidx%size[assetIdx];
+            sidx /= size[assetIdx];
+        }
+
+    }
+
+    int blockedMask(int[] local){
+
+        int mask=0;
+        for (int assetIdx=0; assetIdx<nAssets; assetIdx++){
+            if (full[assetIdx][local[assetIdx]]){
+                mask |= 1<<assetIdx;
+            }
+        }
+        return(mask);
+    }
+
+    double outRate(int[] local, int mask){
+        //total rate out of the state (the negated diagonal)
+
+        double out=0;
+        for (int assetIdx=0; assetIdx<nAssets; assetIdx++){
+            out += internalOut[assetIdx][local[assetIdx]];
+            if (!full[assetIdx][local[assetIdx]]){
+                out += upTotal[assetIdx][mask];
+            }
+        }
+        return(out);
+    }
+
+    @Override
+    public void transposeTransitionMatrix(){
+        //the incoming transitions are generated directly
+
+        if (!transposed){
+            System.out.println("Warning: The matrix-free operator is only available in transposed form.");
+        }
+
+    }
+
+    @Override
+    public void convertToEmbeddedChain(){
+
+        System.out.print("Converting to embedded chain...");
+        rateScale = 1.0/mxRate;
+        embedded = true;
+        System.out.println(" done.");
+
+    }
+
+    @Override
+    public int[] partitionRows(ParallelExecutor executor){
+        //the rows hold similar numbers of transitions. the
+        //arrays of local states are kept while the blocks are
+        //unchanged.
+
+        int[] bounds = executor.partitionEqual(S.stateSpaceSize);
+        if (!Arrays.equals(bounds,blockRows)){
+            blockRows = bounds;
+            blockLocal = new int[(bounds.length-1)][nAssets];
+        }
+        return(bounds);
+    }
+
+    int[] blockLocal(int fromRow){
+        //array of local states of the block starting at fromRow.
+        //each block is multiplied by one thread at a time.
+
+        int b = (blockRows==null) ? -1 : Arrays.binarySearch(blockRows,0,blockRows.length-1,fromRow);
+        if (b<0){
+            throw new IllegalStateException("Row " + fromRow + " does not start a block of partitionRows.");
+        }
+        return(blockLocal[b]);
+    }
+
+    @Override
+    public int numberOfNonZeros(){
+        return((int) Math.min(Integer.MAX_VALUE,nonZeros));
+    }
+
+    @Override
+    public void multiply(double[] x, double[] y, int fromRow, int toRow){
+        //y=A*x for the rows fromRow,...,toRow-1, where A is the
+        //transposed generator or the transposed embedded chain
+
+        int[] local = blockLocal(fromRow);
+        int mask,l;
+        int[] ptr,offset,code;
+        double[] rt;
+        double sm,out;
+        decode(fromRow,local);
+        for (int i=fromRow; i<toRow; i++){
+            mask = blockedMask(local);
+            sm = 0;
+            out = 0;
+            for (int assetIdx=0; assetIdx<nAssets; assetIdx++){
+                l = local[assetIdx];
+
+                //discharges and phase changes
+                ptr = inPtr[assetIdx];
+                offset = inOffset[assetIdx];
+                rt = inRate[assetIdx];
+                for (int k=ptr[l]; k<ptr[(l+1)]; k++){
+                    sm += rt[k]*x[(i+offset[k])];
+                }
+                out += internalOut[assetIdx][l];
+
+                //arrivals and relocations (the asset had free
+                //capacity in the source state)
+                ptr = upPtr[assetIdx];
+                if (ptr[l]<ptr[(l+1)]){
+                    offset = upOffset[assetIdx];
+                    code = upCode[assetIdx];
+                    rt = upRate[assetIdx][(mask & ~(1<<assetIdx))];
+                    for (int k=ptr[l]; k<ptr[(l+1)]; k++){
+                        sm += rt[code[k]]*x[(i+offset[k])];
+                    }
+                }
+                if (!full[assetIdx][l]){
+                    out += upTotal[assetIdx][mask];
+                }
+            }
+            if (embedded){
+                y[i] = x[i]+rateScale*(sm-out*x[i]);
+            }else{
+                y[i] = sm-out*x[i];
+            }
+            next(local);
+        }
+
+    }
+
+    @Override
+    public void multiply(double[] x, double[] y, int nVectors, int fromRow, int toRow){
+        //product with nVectors interleaved vectors (element i of
+        //vector v at i*nVectors+v). the transitions of each row
+        //are generated once for all vectors.
+
+        int[] local = blockLocal(fromRow);
+        int mask,l,o,src;
+        int[] ptr,offset,code;
+        double[] rt;
+        double out,a;
+        decode(fromRow,local);
+        for (int i=fromRow; i<toRow; i++){
+            mask = blockedMask(local);
+            o = i*nVectors;
+            for (int v=0; v<nVectors; v++){
+                y[(o+v)] = 0;
+            }
+            for (int assetIdx=0; assetIdx<nAssets; assetIdx++){
+                l = local[assetIdx];
+                ptr = inPtr[assetIdx];
+                offset = inOffset[assetIdx];
+                rt = inRate[assetIdx];
+                for (int k=ptr[l]; k<ptr[(l+1)]; k++){
+                    a = rt[k];
+                    src = (i+offset[k])*nVectors;
+                    for (int v=0; v<nVectors; v++){
+                        y[(o+v)] += a*x[(src+v)];
+                    }
+                }
+                ptr = upPtr[assetIdx];
+                if (ptr[l]<ptr[(l+1)]){
+                    offset = upOffset[assetIdx];
+                    code = upCode[assetIdx];
+                    rt = upRate[assetIdx][(mask & ~(1<<assetIdx))];
+                    for (int k=ptr[l]; k<ptr[(l+1)]; k++){
+                        a = rt[code[k]];
+                        src = (i+offset[k])*nVectors;
+                        for (int v=0; v<nVectors; v++){
+                            y[(o+v)] += a*x[(src+v)];
+                        }
+                    }
+                }
+            }
+            out = outRate(local,mask);
+            for (int v=0; v<nVectors; v++){
+                if (embedded){
+                    y[(o+v)] = x[(o+v)]+rateScale*(y[(o+v)]-out*x[(o+v)]);
+                }else{
+                    y[(o+v)] -= out*x[(o+v)];
+                }
+            }
+            next(local);
+        }
+
+    }
+
+    //single precision is rejected together with this layout
+    //(TranReloc.unsupportedOptions), and EvaluateSystem solves
+    //the segment in double precision when it is set directly
+    
+    @Override
+    public void multiply(float[] x, float[] y, int fromRow, int toRow){
+        throw new UnsupportedOperationException("The matrix-free operator is only available in double precision.");
+    }
+
+    void next(int[] local){
+        //advances the local states to the next state index
+
+        int assetIdx = nAssets-1;
+        while (assetIdx>=0){
+            local[assetIdx]++;
+            if (local[assetIdx]<size[assetIdx]){
+                return;
+            }
+            local[assetIdx] = 0;
+            assetIdx--;
+        }
+
+    }
+
+    @Override
+    public double generatorScale(){
+        return(1.0);
+    }
+
+    @Override
+    public double generatorDiagonal(int i){
+
+        decode(i,diagonalLocal);
+        return(-outRate(diagonalLocal,blockedMask(diagonalLocal)));
+    }
+
+}
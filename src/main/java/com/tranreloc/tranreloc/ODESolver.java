@@ -0,0 +1,349 @@
+/*
+ * Copyright 2022 Anders Reenberg Andersen.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.tranreloc.tranreloc;
+
+/**
+ *
+ * @author Anders Reenberg Andersen
+ */
+
+//Class for solving the forward Kolmogorov equations,
+//d pi(t)/dt = pi(t)*Q, with the L-stable TR-BDF2 method
+//(Bank et al., 1985) and the error estimate of Hosea and
+//Shampine (1996). The step size follows the smoothness of
+//the solution rather than the largest rate, so the cost does
+//not grow with the uniformization rate. Both stages solve a
+//system with the matrix I - (gamma/2)*h*Q^T, which is done
+//with BiCGSTAB and a diagonal (Jacobi) preconditioner.
+
+public class ODESolver implements TransientSolver {
+
+    StateSpace S;
+    TransitionRateMatrix tranMat;
+
+    ParallelExecutor executor; //runs the matrix-vector products
+    int[] blocks; //row blocks of the transposed matrix
+    ParallelExecutor.RowBlockTask productTask;
+
+    //method constants
+    final double gamma = 2.0-Math.sqrt(2.0);
+    final double d = gamma/2.0; //diagonal coefficient of both stages
+    final double errConst = (-3.0*gamma*gamma+4.0*gamma-2.0)/(6.0*(2.0-gamma));
+
+    int maxLinearIterations;
+
+    //workspace (reused across solves)
+    double[] y,yg,y1; //solution at t, t+gamma*h and t+h
+    double[] f0,fg,f1; //derivatives at the same points
+    double[] rhs,est;
+    double[] r,rHat,p,v,s,q,pHat,sHat; //BiCGSTAB vectors
+    double[] precond; //inverse diagonal of the current system
+    double[] productIn,productOut; //vectors of the current product
+
+    int matVecs; //matrix-vector products in the latest solve
+    int linearIterations; //BiCGSTAB iterations in the latest solve
+    double solveTime; //seconds used by the latest solve
+
+    public ODESolver(){
+
+        executor = new ParallelExecutor(1);
+        productTask = this::product;
+        maxLinearIterations = 1000;
+
+    }
+
+    public ODESolver(StateSpace S, TransitionRateMatrix tranMat){
+
+        this();
+        setTransitionRateMatrix(S,tranMat);
+
+    }
+
+    public void setTransitionRateMatrix(StateSpace S, TransitionRateMatrix tranMat){
+
+        this.S = S;
+        this.tranMat = tranMat;
+
+    }
+
+    public void setParallelExecutor(ParallelExecutor executor){
+
+        this.executor = executor;
+
+    }
+
+    public int getMatrixVectorProducts(){
+        return(matVecs);
+    }
+
+    public double getSolveTime(){
+        return(solveTime);
+    }
+
+    public void solve(StateDistribution stateDist, double t, double epsilon){
+
+        long startTime = System.currentTimeMillis();
+        if (!tranMat.transposed){
+            tranMat.transposeTransitionMatrix();
+        }
+        if (!tranMat.embedded){
+            tranMat.convertToEmbeddedChain();
+        }
+        blocks = tranMat.partitionRows(executor);
+
+        int n = S.stateSpaceSize;
+        ensureWorkspace(n);
+        matVecs = 0;
+        linearIterations = 0;
+
+        System.out.print("Solving (TR-BDF2)...");
+        System.arraycopy(stateDist.stateDist,0,y,0,n);
+        int[] steps = integrate(n,t,epsilon);
+
+        //remove the round-off below zero before normalizing
+        for (int i=0; i<n; i++){
+            stateDist.stateDist[i] = Math.max(0.0,y[i]);
+        }
+        stateDist.normalizeDist();
+        System.out.println(" done (" + steps[0] + " steps, " + steps[1] + " rejected, "
+                + linearIterations + " linear iterations, " + matVecs + " matrix-vector products).");
+        solveTime = (double) (System.currentTimeMillis()-startTime)/1000.0;
+
+    }
+
+    private int[] integrate(int n, double t, double tol){
+        //advances y from 0 to t. the local error of a step of
+        //length h is kept below tol*h/t (in the 1-norm). the
+        //generator does not increase the 1-norm of an error, so
+        //the local errors add up to at most tol over the segment.
+
+        double tNow=0,h,err,fac,c0,c1,stepTol;
+        int nSteps=0,nRejected=0;
+        boolean last;
+
+        multiply(y,f0);
+        h = initialStep(n,t,tol);
+
+        while (tNow<t){
+
+            last = (tNow+h>=t);
+            if (last){
+                h = t-tNow;
+            }
+            stepTol = tol*h/t;
+
+            //trapezoidal stage to t+gamma*h:
+            //(I - d*h*A) yg = y + d*h*f0
+            prepareSystem(n,d*h);
+            for (int i=0; i<n; i++){
+                rhs[i] = y[i]+d*h*f0[i];
+            }
+            System.arraycopy(y,0,yg,0,n);
+            bicgstab(n,d*h,rhs,yg,0.01*stepTol);
+            multiply(yg,fg);
+
+            //BDF2 stage to t+h:
+            //(I - d*h*A) y1 = c1*yg - c0*y
+            c1 = 1.0/(gamma*(2.0-gamma));
+            c0 = (1.0-gamma)*(1.0-gamma)/(gamma*(2.0-gamma));
+            for (int i=0; i<n; i++){
+                rhs[i] = c1*yg[i]-c0*y[i];
+                y1[i] = yg[i]+(yg[i]-y[i])*(1.0-gamma)/gamma; //extrapolated guess
+            }
+            bicgstab(n,d*h,rhs,y1,0.01*stepTol);
+            multiply(y1,f1);
+
+            //error estimate, filtered through the stage matrix
+            //to avoid overestimating the error of stiff components
+            for (int i=0; i<n; i++){
+                rhs[i] = errConst*h*(f0[i]/gamma-fg[i]/(gamma*(1.0-gamma))+f1[i]/(1.0-gamma));
+                est[i] = rhs[i];
+            }
+            bicgstab(n,d*h,rhs,est,0.1*stepTol);
+            err=0;
+            for (int i=0; i<n; i++){
+                err += Math.abs(est[i]);
+            }
+            err /= stepTol;
+
+            //new step size (the method is of second order, so the
+            //local error scales with h^3 and the error per unit of
+            //time with h^2)
+            fac = (err>0) ? 0.9*Math.pow(err,-1.0/2.0) : 5.0;
+            fac = Math.min(5.0,Math.max(0.2,fac));
+
+            if (err<=1.0){
+                tNow = last ? t : tNow+h;
+                System.arraycopy(y1,0,y,0,n);
+                System.arraycopy(f1,0,f0,0,n);
+                nSteps++;
+            }else{
+                nRejected++;
+            }
+            h *= fac;
+        }
+
+        return(new int[]{nSteps,nRejected});
+    }
+
+    private double initialStep(int n, double t, double tol){
+        //a step for which the third order term of the
+        //initial derivative is about the tolerance
+
+        double fnorm=0;
+        for (int i=0; i<n; i++){
+            fnorm += Math.abs(f0[i]);
+        }
+        if (fnorm==0){
+            return(t);
+        }
+        return(Math.min(t,Math.cbrt(tol)/fnorm));
+    }
+
+    private void prepareSystem(int n, double c){
+        //inverse diagonal of I - c*A
+
+        for (int i=0; i<n; i++){
+            precond[i] = 1.0/(1.0-c*tranMat.generatorDiagonal(i));
+        }
+
+    }
+
+    private void systemProduct(int n, double c, double[] in, double[] out){
+        //out = (I - c*A)*in
+
+        multiply(in,out);
+        for (int i=0; i<n; i++){
+            out[i] = in[i]-c*out[i];
+        }
+
+    }
+
+    private void bicgstab(int n, double c, double[] b, double[] x, double tol){
+        //solves (I - c*A)*x = b with right-preconditioned BiCGSTAB
+        //(van der Vorst, 1992). x holds the initial guess. the
+        //iterations stop when the 1-norm of the residual is
+        //below tol.
+
+        systemProduct(n,c,x,r);
+        for (int i=0; i<n; i++){
+            r[i] = b[i]-r[i];
+            rHat[i] = r[i];
+            p[i] = 0;
+            v[i] = 0;
+        }
+        if (norm1(r,n)<=tol){
+            return;
+        }
+
+        double rho=1,alpha=1,omega=1,rhoNew,beta,tt,ts;
+        for (int it=0; it<maxLinearIterations; it++){
+            linearIterations++;
+
+            rhoNew = dot(rHat,r,n);
+            if (rhoNew==0){
+                break; //breakdown
+            }
+            beta = (rhoNew/rho)*(alpha/omega);
+            rho = rhoNew;
+            for (int i=0; i<n; i++){
+                p[i] = r[i]+beta*(p[i]-omega*v[i]);
+                pHat[i] = precond[i]*p[i];
+            }
+            systemProduct(n,c,pHat,v);
+            alpha = rho/dot(rHat,v,n);
+            for (int i=0; i<n; i++){
+                s[i] = r[i]-alpha*v[i];
+            }
+            if (norm1(s,n)<=tol){
+                for (int i=0; i<n; i++){
+                    x[i] += alpha*pHat[i];
+                }
+                return;
+            }
+            for (int i=0; i<n; i++){
+                sHat[i] = precond[i]*s[i];
+            }
+            systemProduct(n,c,sHat,q);
+            tt = dot(q,q,n);
+            ts = dot(q,s,n);
+            omega = (tt>0) ? ts/tt : 0;
+            for (int i=0; i<n; i++){
+                x[i] += alpha*pHat[i]+omega*sHat[i];
+                r[i] = s[i]-omega*q[i];
+            }
+            if (norm1(r,n)<=tol || omega==0){
+                return;
+            }
+        }
+        System.out.print(" Warning: the linear solver did not converge.");
+
+    }
+
+    private void multiply(double[] in, double[] out){
+        //out = Q^T*in, evaluated from the stored embedded
+        //chain as mxRate*(P^T*in - in)
+
+        productIn = in;
+        productOut = out;
+        executor.forEachBlock(blocks,productTask);
+        matVecs++;
+
+    }
+
+    private void product(int fromRow, int toRow){
+
+        tranMat.multiply(productIn,productOut,fromRow,toRow);
+        for (int i=fromRow; i<toRow; i++){
+            productOut[i] = tranMat.mxRate*(productOut[i]-productIn[i]);
+        }
+
+    }
+
+    private double dot(double[] a, double[] b, int n){
+        double sm=0;
+        for (int i=0; i<n; i++){
+            sm += a[i]*b[i];
+        }
+        return(sm);
+    }
+
+    private double norm1(double[] a, int n){
+        double sm=0;
+        for (int i=0; i<n; i++){
+            sm += Math.abs(a[i]);
+        }
+        return(sm);
+    }
+
+    private void ensureWorkspace(int n){
+        //the vectors are only reallocated when the
+        //state space grows
+
+        if (y==null || y.length<n){
+            y = new double[n]; yg = new double[n]; y1 = new double[n];
+            f0 = new double[n]; fg = new double[n]; f1 = new double[n];
+            rhs = new double[n]; est = new double[n];
+            r = new double[n]; rHat = new double[n]; p = new double[n];
+            v = new double[n]; s = new double[n]; q = new double[n];
+            pHat = new double[n]; sHat = new double[n];
+            precond = new double[n];
+        }
+
+    }
+
+}
@@ -0,0 +1,399 @@
+/*
+ * Copyright 2022 Anders Reenberg Andersen.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.tranreloc.tranreloc;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ *
+ * @author Anders Reenberg Andersen
+ */
+
+//Class for a transition rate matrix stored on disk in blocks of
+//rows, for state spaces where the matrix does not fit in memory.
+//The rows are generated as in TransitionRateMatrix, and a block
+//is written to the file whenever the generated elements reach
+//the block size, so at most one block is held in memory. Only
+//the diagonal and the positions of the blocks stay in memory.
+//Each product streams the blocks from the file, and the next
+//block is read by a background thread while the current block
+//is multiplied. The blocks hold the rows of the generator (the
+//outgoing transitions), so the product with the transposed
+//matrix adds each row to the result (scatters it), and all rows
+//of the result are computed in one pass by one thread.
+
+public class OutOfCoreMatrix extends TransitionRateMatrix {
+
+    File directory; //directory of the block file (null: the temporary directory)
+    int blockElements; //largest number of off-diagonal elements per block
+
+    File file;
+    RandomAccessFile raf;
+    FileChannel channel;
+    ByteBuffer writeBuffer;
+
+    int nBlocks;
+    int[] blockRow; //first row of each block
+    long[] blockPosition; //position of each block in the file
+    int[] blockNonZeros; //off-diagonal elements of each block
+    int maxRows,maxNonZeros; //largest block
+    long nonZeros;
+    long fileLength; //bytes written to the file
+
+    double rateScale; //1/mxRate for the embedded chain (1 for the generator)
+
+    //the block being multiplied and the block being read
+    Block[] buffers;
+    ExecutorService reader;
+
+    private static class Block {
+
+        ByteBuffer buffer;
+        int[] ptr; //local row pointers
+        int[] cols;
+        double[] vals;
+        int first,rows; //rows of the block held
+
+        Block(int maxRows, int maxNonZeros){
+            buffer = ByteBuffer.allocateDirect(4*(maxRows+1)+12*maxNonZeros).order(ByteOrder.nativeOrder());
+            ptr = new int[(maxRows+1)];
+            cols = new int[maxNonZeros];
+            vals = new double[maxNonZeros];
+        }
+
+    }
+
+    private interface BlockTask {
+        void run(Block block);
+    }
+
+    public OutOfCoreMatrix(StateSpace S, File directory){
+
+        super(S);
+        this.directory = directory;
+        blockElements = 1<<22;
+
+    }
+
+    public void setBlockElements(int blockElements){
+        //elements per block. two blocks are held in memory
+        //while the matrix is multiplied (12 bytes per element).
+
+        this.blockElements = blockElements;
+
+    }
+
+    @Override
+    public void generateMatrix(){
+
+        System.out.print("Generating out-of-core matrix...");
+
+        int n = S.stateSpaceSize;
+        diagonal = new double[n];
+        rowPtr = new int[(blockElements+1)]; //pointers of the current block
+        columnIndices = new int[blockElements];
+        rates = new double[blockElements];
+        blockRow = new int[16];
+        blockPosition = new long[16];
+        blockNonZeros = new int[16];
+        nBlocks = 0;
+        nonZeros = 0;
+        fileLength = 0;
+        maxRows = 0;
+        maxNonZeros = 0;
+        openFile();
+
+        S.resetState();
+        mxRate = Double.MIN_VALUE;
+        int first=0;
+        for (int sidx=0; sidx<n; sidx++){
+
+            //write the block when the row does not fit
+            S.currentTotalJumps();
+            if (sidx>first && (rowPtr[(sidx-first)]+S.ctjumps>blockElements || sidx-first==blockElements)){
+                writeBlock(first,sidx);
+                first = sidx;
+                rowPtr[0] = 0;
+            }
+            ensureCapacity((long)rowPtr[(sidx-first)]+S.ctjumps);
+            rowPtr[(sidx-first+1)] = generateRow(sidx,rowPtr[(sidx-first)]);
+
+            S.nextState();
+        }
+        writeBlock(first,n);
+
+        //only the diagonal is kept in memory
+        rowPtr = null;
+        columnIndices = null;
+        rates = null;
+        writeBuffer = null;
+        buffers = new Block[]{new Block(maxRows,maxNonZeros),new Block(maxRows,maxNonZeros)};
+        reader = Executors.newSingleThreadExecutor(r -> {
+            Thread t = new Thread(r);
+            t.setDaemon(true);
+            return(t);
+        });
+        rateScale = 1.0;
+        transposed = true;
+
+        System.out.println(" done (" + nBlocks + " blocks).");
+
+    }
+
+    private void openFile(){
+
+        try {
+            file = File.createTempFile("tranreloc",".blocks",directory);
+            file.deleteOnExit();
+            raf = new RandomAccessFile(file,"rw");
+            channel = raf.getChannel();
+        }catch(IOException e){
+            throw new RuntimeException("Could not create the block file in " + directory,e);
+        }
+
+    }
+
+    private void writeBlock(int first, int end){
+        //writes the rows first,...,end-1 held in rowPtr,
+        //columnIndices and rates
+
+        int rows = end-first;
+        int nnz = rowPtr[rows];
+        int bytes = 4*(rows+1)+12*nnz;
+        if (writeBuffer==null || writeBuffer.capacity()<bytes){
+            writeBuffer = ByteBuffer.allocateDirect(bytes).order(ByteOrder.nativeOrder());
+        }
+        writeBuffer.clear();
+        writeBuffer.asIntBuffer().put(rowPtr,0,rows+1);
+        writeBuffer.position(4*(rows+1));
+        writeBuffer.asIntBuffer().put(columnIndices,0,nnz);
+        writeBuffer.position(4*(rows+1+nnz));
+        writeBuffer.asDoubleBuffer().put(rates,0,nnz);
+        writeBuffer.position(0);
+        writeBuffer.limit(bytes);
+
+        if (nBlocks==blockRow.length){
+            blockRow = Arrays.copyOf(blockRow,2*nBlocks);
+            blockPosition = Arrays.copyOf(blockPosition,2*nBlocks);
+            blockNonZeros = Arrays.copyOf(blockNonZeros,2*nBlocks);
+        }
+        long position = fileLength;
+        fileLength += bytes;
+        blockRow[nBlocks] = first;
+        blockPosition[nBlocks] = position;
+        blockNonZeros[nBlocks] = nnz;
+        nBlocks++;
+        nonZeros += nnz;
+        maxRows = Math.max(maxRows,rows);
+        maxNonZeros = Math.max(maxNonZeros,nnz);
+
+        try {
+            while (writeBuffer.hasRemaining()){
+                position += channel.write(writeBuffer,position);
+            }
+        }catch(IOException e){
+            throw new RuntimeException("Could not write to the block file " + file,e);
+        }
+
+    }
+
+    private Block readBlock(Block block, int b){
+
+        int end = (b+1<nBlocks) ? blockRow[(b+1)] : S.stateSpaceSize;
+        block.first = blockRow[b];
+        block.rows = end-block.first;
+        int nnz = blockNonZeros[b];
+        ByteBuffer buffer = block.buffer;
+        buffer.clear();
+        buffer.limit(4*(block.rows+1)+12*nnz);
+        try {
+            long position = blockPosition[b];
+            while (buffer.hasRemaining()){
+                if (channel.read(buffer,position+buffer.position())<0){
+                    throw new IOException("Unexpected end of file.");
+                }
+            }
+        }catch(IOException e){
+            throw new RuntimeException("Could not read from the block file " + file,e);
+        }
+        buffer.position(0);
+        buffer.asIntBuffer().get(block.ptr,0,block.rows+1);
+        buffer.position(4*(block.rows+1));
+        buffer.asIntBuffer().get(block.cols,0,nnz);
+        buffer.position(4*(block.rows+1+nnz));
+        buffer.asDoubleBuffer().get(block.vals,0,nnz);
+
+        return(block);
+    }
+
+    private void stream(BlockTask task){
+        //runs the task on each block in order. block b+1 is read
+        //into the other buffer while block b is processed.
+
+        Future<Block> pending = reader.submit(() -> readBlock(buffers[0],0));
+        Block block;
+        for (int b=0; b<nBlocks; b++){
+            try {
+                block = pending.get();
+            }catch(InterruptedException | ExecutionException e){
+                throw new RuntimeException(e);
+            }
+            if (b+1<nBlocks){
+                final int nb = b+1;
+                pending = reader.submit(() -> readBlock(buffers[(nb%2)],nb));
+            }
+            task.run(block);
+        }
+
+    }
+
+    @Override
+    public void transposeTransitionMatrix(){
+        //the stored rows are scattered by the product, which
+        //multiplies with the transposed matrix
+    }
+
+    @Override
+    public void convertToEmbeddedChain(){
+
+        System.out.print("Converting to embedded chain...");
+        rateScale = 1.0/mxRate;
+        for (int i=0; i<diagonal.length; i++){
+            diagonal[i] = diagonal[i]*rateScale+1.0;
+        }
+        embedded = true;
+        System.out.println(" done.");
+
+    }
+
+    @Override
+    public int[] partitionRows(ParallelExecutor executor){
+        //the rows of the result are computed together
+
+        return(new int[]{0,S.stateSpaceSize});
+    }
+
+    @Override
+    public int numberOfNonZeros(){
+        return((int) Math.min(Integer.MAX_VALUE,nonZeros));
+    }
+
+    @Override
+    public void multiply(double[] x, double[] y, int fromRow, int toRow){
+        //y=A*x, where A is the transposed generator or the
+        //transposed embedded chain
+
+        checkRows(fromRow,toRow);
+        for (int i=0; i<S.stateSpaceSize; i++){
+            y[i] = diagonal[i]*x[i];
+        }
+        stream(block -> {
+            double a;
+            for (int r=0; r<block.rows; r++){
+                a = rateScale*x[(block.first+r)];
+                if (a!=0){
+                    for (int k=block.ptr[r]; k<block.ptr[(r+1)]; k++){
+                        y[block.cols[k]] += block.vals[k]*a;
+                    }
+                }
+            }
+        });
+
+    }
+
+    @Override
+    public void multiply(double[] x, double[] y, int nVectors, int fromRow, int toRow){
+        //as above for nVectors interleaved vectors
+
+        checkRows(fromRow,toRow);
+        for (int i=0; i<S.stateSpaceSize; i++){
+            for (int v=0; v<nVectors; v++){
+                y[(i*nVectors+v)] = diagonal[i]*x[(i*nVectors+v)];
+            }
+        }
+        stream(block -> {
+            double a;
+            int o,c;
+            for (int r=0; r<block.rows; r++){
+                o = (block.first+r)*nVectors;
+                for (int k=block.ptr[r]; k<block.ptr[(r+1)]; k++){
+                    a = rateScale*block.vals[k];
+                    c = block.cols[k]*nVectors;
+                    for (int v=0; v<nVectors; v++){
+                        y[(c+v)] += a*x[(o+v)];
+                    }
+                }
+            }
+        });
+
+    }
+
+    //single precision is rejected together with this layout
+    //(TranReloc.unsupportedOptions), and EvaluateSystem solves
+    //the segment in double precision when it is set directly
+    
+    @Override
+    public void multiply(float[] x, float[] y, int fromRow, int toRow){
+        throw new UnsupportedOperationException("The out-of-core matrix is only available in double precision.");
+    }
+
+    private void checkRows(int fromRow, int toRow){
+        //partitionRows returns a single block, and the solvers
+        //only truncate the rows of a stored CSR matrix
+
+        if (fromRow!=0 || toRow!=S.stateSpaceSize){
+            throw new UnsupportedOperationException("The out-of-core matrix only multiplies all rows at once.");
+        }
+
+    }
+
+    @Override
+    public double generatorScale(){
+        return(1.0);
+    }
+
+    @Override
+    public void close(){
+        //removes the block file
+
+        if (reader!=null){
+            reader.shutdownNow();
+        }
+        try {
+            if (raf!=null){
+                raf.close();
+            }
+        }catch(IOException e){
+            System.out.println("Warning: Could not close the block file " + file + ".");
+        }
+        if (file!=null){
+            file.delete();
+        }
+
+    }
+
+}
@@ -0,0 +1,194 @@
+/*
+ * Copyright 2022 Anders Reenberg Andersen.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.tranreloc.tranreloc;
+
+import java.util.Arrays;
+import java.util.concurrent.BrokenBarrierException;
+import java.util.concurrent.CyclicBarrier;
+
+/**
+ *
+ * @author Anders Reenberg Andersen
+ */
+
+//Class for running contiguous blocks of rows in
+//parallel on a fixed number of threads
+
+public class ParallelExecutor {
+
+    int nThreads;
+    Thread[] workers; //the calling thread acts as worker 0
+    CyclicBarrier start,done;
+    
+    //the current job (published to the workers by the barrier)
+    RowBlockTask task;
+    int[] bounds;
+    Throwable failure;
+    volatile boolean stopped;
+
+    public interface RowBlockTask {
+        void run(int fromRow, int toRow);
+    }
+
+    public ParallelExecutor(int nThreads){
+
+        this.nThreads = Math.max(1,nThreads);
+
+        if (this.nThreads>1){
+            start = new CyclicBarrier(this.nThreads);
+            done = new CyclicBarrier(this.nThreads);
+            workers = new Thread[this.nThreads];
+            for (int w=1; w<this.nThreads; w++){
+                final int worker = w;
+                workers[w] = new Thread(() -> workerLoop(worker),"tranreloc-worker-" + w);
+                workers[w].setDaemon(true); //do not keep the program alive
+                workers[w].start();
+            }
+        }
+
+    }
+
+    public int getNumberOfThreads(){
+        return(nThreads);
+    }
+
+    public int[] partitionRows(int[] rowPtr, int nRows){
+        //splits the rows into one block per thread such that
+        //each block holds roughly the same number of elements.
+        //the diagonal counts as one element in each row.
+        //block b covers the rows bounds[b],...,bounds[b+1]-1.
+        //empty blocks are dropped, so each block is identified
+        //by its first row.
+
+        int nBlocks = Math.max(1,Math.min(nThreads,nRows));
+        int[] bounds = new int[(nBlocks+1)];
+        long total = (long) rowPtr[nRows]-rowPtr[0]+nRows;
+
+        int row=0;
+        long target;
+        for (int b=1; b<nBlocks; b++){
+            target = (total*b)/nBlocks;
+            while (row<nRows && ((long)rowPtr[row]-rowPtr[0]+row)<target){
+                row++;
+            }
+            bounds[b]=row;
+        }
+        bounds[nBlocks]=nRows;
+
+        int nBounds=1;
+        for (int b=1; b<=nBlocks; b++){
+            if (bounds[b]>bounds[(nBounds-1)]){
+                bounds[nBounds] = bounds[b];
+                nBounds++;
+            }
+        }
+
+        return(Arrays.copyOf(bounds,Math.max(2,nBounds)));
+    }
+
+    public int[] partitionEqual(int nRows){
+        //splits the rows into one block per thread with
+        //an equal number of rows in each block
+
+        int nBlocks = Math.max(1,Math.min(nThreads,nRows));
+        int[] bounds = new int[(nBlocks+1)];
+        for (int b=1; b<=nBlocks; b++){
+            bounds[b] = (int)(((long)nRows*b)/nBlocks);
+        }
+
+        return(bounds);
+    }
+
+    public void forEachBlock(int[] bounds, RowBlockTask task){
+        //runs the task on each block and returns when all
+        //blocks are done. each row is handled by exactly one
+        //thread, so the results do not depend on the number
+        //of threads. the workers are reused, so no objects
+        //are allocated per call.
+
+        if (workers==null || bounds.length<=2){
+            for (int b=0; b<(bounds.length-1); b++){
+                task.run(bounds[b],bounds[(b+1)]);
+            }
+            return;
+        }
+
+        this.task = task;
+        this.bounds = bounds;
+        failure = null;
+        
+        await(start);
+        runBlocks(0);
+        await(done);
+        
+        this.task = null;
+        if (failure!=null){
+            throw new RuntimeException(failure);
+        }
+
+    }
+
+    private void workerLoop(int worker){
+        
+        while (!stopped){
+            try {
+                start.await();
+                runBlocks(worker);
+                done.await();
+            } catch (InterruptedException | BrokenBarrierException e) {
+                return; //the executor was shut down
+            }
+        }
+        
+    }
+    
+    private void runBlocks(int worker){
+        //worker w handles the blocks w, w+nThreads, ...
+        
+        try {
+            for (int b=worker; b<(bounds.length-1); b+=nThreads){
+                task.run(bounds[b],bounds[(b+1)]);
+            }
+        } catch (Throwable e) {
+            synchronized (this){
+                failure = e;
+            }
+        }
+        
+    }
+    
+    private void await(CyclicBarrier barrier){
+        
+        try {
+            barrier.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        } catch (BrokenBarrierException e) {
+            throw new RuntimeException(e);
+        }
+        
+    }
+
+    public void shutdown(){
+        if (workers!=null){
+            stopped = true;
+            start.reset(); //releases the waiting workers
+        }
+    }
+
+}
@@ -0,0 +1,306 @@
+/*
+ * Copyright 2022 Anders Reenberg Andersen.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.tranreloc.tranreloc;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.Socket;
+import java.util.Arrays;
+
+/**
+ *
+ * @author Anders Reenberg Andersen
+ */
+
+//Worker process of the partitioned uniformization. The worker
+//connects to the coordinator (WorkerPool) and holds the rows of
+//the generator for a contiguous range of states lo,...,hi-1 in
+//each segment, i.e. the outgoing transitions of its states.
+//In each jump, the worker multiplies its part of the distribution
+//with its rows. The results that fall in its own range are added
+//locally, and the results for the states of other workers are
+//sent to the coordinator, which relays them to their owners.
+//Only these entries cross the process boundary in each jump.
+//
+//Usage: java -cp TranReloc.jar com.tranreloc.tranreloc.PartitionWorker
+//           <coordinator host> <port> <parameter directory>
+//The relocation rules are read from the parameter directory, and
+//the assets of each segment are sent by the coordinator.
+
+public class PartitionWorker {
+
+    CustomerRelocationMap relMap;
+    DataInputStream in;
+    DataOutputStream out;
+
+    int worker,nWorkers;
+    int[] bounds; //first state of each worker
+    int lo,hi; //states of this worker
+
+    TransitionRateMatrix rows; //outgoing transitions of lo,...,hi-1
+    int[] target; //local state of each element, or -(slot+1) when sent
+    int[] remote; //states of the other workers reached from this range (sorted)
+    int[] sendPtr; //first slot of each worker in remote
+    int[][] receiveRows; //local states of the entries received from each worker
+    double[] send;
+    double[] x,y,dist;
+
+    public static void main(String[] args){
+
+        //the progress is reported by the coordinator
+        PrintStream console = System.out;
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+
+        try (Socket socket = new Socket(args[0],Integer.parseInt(args[1]))){
+            socket.setTcpNoDelay(true);
+            PartitionWorker w = new PartitionWorker(new ReadRelocationMap(args[2]).getRelocationMap());
+            w.in = new DataInputStream(new BufferedInputStream(socket.getInputStream(),1<<16));
+            w.out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream(),1<<16));
+            w.run();
+        }catch(EOFException e){
+            //the coordinator has stopped
+        }catch(IOException e){
+            console.println("Worker: " + e.getMessage());
+            System.exit(1);
+        }
+
+    }
+
+    public PartitionWorker(CustomerRelocationMap relMap){
+
+        this.relMap = relMap;
+
+    }
+
+    private void run() throws IOException {
+
+        int command;
+        while ((command = in.readInt())!=WorkerPool.QUIT){
+            if (command==WorkerPool.GENERATE){
+                generate();
+            }else if (command==WorkerPool.SOLVE){
+                solve();
+            }else if (command==WorkerPool.RELEASE){
+                rows = null;
+                target = null;
+                x = null;
+                y = null;
+                dist = null;
+            }
+        }
+
+    }
+
+    private void generate() throws IOException {
+        //reads the assets of the segment, generates the rows
+        //of this worker, and reports the states of the other
+        //workers that the rows reach
+
+        worker = in.readInt();
+        nWorkers = in.readInt();
+        bounds = new int[(nWorkers+1)];
+        for (int w=0; w<=nWorkers; w++){
+            bounds[w] = in.readInt();
+        }
+        lo = bounds[worker];
+        hi = bounds[(worker+1)];
+        Asset[] assets = new Asset[in.readInt()];
+        for (int assetIdx=0; assetIdx<assets.length; assetIdx++){
+            int capacity = in.readInt();
+            double arrivalRate = in.readDouble();
+            PhaseTypeDistribution[] phDists = new PhaseTypeDistribution[in.readInt()];
+            for (int d=0; d<phDists.length; d++){
+                int nPhases = in.readInt();
+                double[] initial = new double[nPhases];
+                double[][] generator = new double[nPhases][nPhases];
+                for (int i=0; i<nPhases; i++){
+                    initial[i] = in.readDouble();
+                }
+                for (int i=0; i<nPhases; i++){
+                    for (int j=0; j<nPhases; j++){
+                        generator[i][j] = in.readDouble();
+                    }
+                }
+                phDists[d] = new PhaseTypeDistribution(initial,generator);
+            }
+            assets[assetIdx] = new Asset(capacity,phDists,arrivalRate);
+        }
+
+        rows = new TransitionRateMatrix(new StateSpace(assets,relMap));
+        rows.generateRows(lo,hi);
+        mapTargets();
+
+        out.writeDouble(rows.mxRate);
+        out.writeLong(rows.numberOfNonZeros());
+        for (int w=0; w<nWorkers; w++){
+            if (w!=worker){
+                out.writeInt(sendPtr[(w+1)]-sendPtr[w]);
+                for (int j=sendPtr[w]; j<sendPtr[(w+1)]; j++){
+                    out.writeInt(remote[j]);
+                }
+            }
+        }
+        out.flush();
+
+        //the states of this worker reached by the others
+        receiveRows = new int[nWorkers][];
+        for (int w=0; w<nWorkers; w++){
+            if (w!=worker){
+                receiveRows[w] = new int[in.readInt()];
+                for (int j=0; j<receiveRows[w].length; j++){
+                    receiveRows[w][j] = in.readInt()-lo;
+                }
+            }
+        }
+        send = new double[remote.length];
+        x = new double[(hi-lo)];
+        y = new double[(hi-lo)];
+        dist = new double[(hi-lo)];
+
+    }
+
+    private void mapTargets(){
+        //replaces the column indices by local states and slots
+        //of the entries sent to the other workers
+
+        int nnz = rows.numberOfNonZeros();
+        int[] col = rows.columnIndices;
+        int nRemote=0;
+        for (int k=0; k<nnz; k++){
+            if (col[k]<lo || col[k]>=hi){
+                nRemote++;
+            }
+        }
+        int[] states = new int[nRemote];
+        nRemote=0;
+        for (int k=0; k<nnz; k++){
+            if (col[k]<lo || col[k]>=hi){
+                states[nRemote] = col[k];
+                nRemote++;
+            }
+        }
+        Arrays.sort(states);
+        int m=0;
+        for (int j=0; j<nRemote; j++){
+            if (m==0 || states[j]!=states[(m-1)]){
+                states[m] = states[j];
+                m++;
+            }
+        }
+        remote = Arrays.copyOf(states,m);
+
+        //the ranges are ordered, so the slots of each worker
+        //are contiguous
+        sendPtr = new int[(nWorkers+1)];
+        for (int w=0; w<=nWorkers; w++){
+            int p = Arrays.binarySearch(remote,bounds[w]);
+            sendPtr[w] = (p>=0) ? p : -(p+1);
+        }
+
+        target = new int[nnz];
+        for (int k=0; k<nnz; k++){
+            if (col[k]<lo || col[k]>=hi){
+                target[k] = -(Arrays.binarySearch(remote,col[k])+1);
+            }else{
+                target[k] = col[k]-lo;
+            }
+        }
+        rows.columnIndices = null;
+
+    }
+
+    private void solve() throws IOException {
+        //uniformization with the Poisson weights given by the
+        //coordinator. the entries for the other workers are
+        //exchanged in each jump.
+
+        int n = hi-lo;
+        double rateScale = 1.0/in.readDouble();
+        int right = in.readInt();
+        double[] weights = new double[(right+1)];
+        for (int k=0; k<=right; k++){
+            weights[k] = in.readDouble();
+        }
+        for (int i=0; i<n; i++){
+            x[i] = in.readDouble();
+            dist[i] = weights[0]*x[i];
+        }
+
+        int[] ptr = rows.rowPtr;
+        double[] rates = rows.rates;
+        double[] diagonal = rows.diagonal;
+        double a;
+        int t;
+        double[] swap;
+        for (int k=1; k<=right; k++){
+
+            //the local rows of the embedded chain
+            Arrays.fill(send,0.0);
+            for (int i=0; i<n; i++){
+                y[i] = (1.0+rateScale*diagonal[i])*x[i];
+            }
+            for (int i=0; i<n; i++){
+                a = rateScale*x[i];
+                if (a!=0){
+                    for (int j=ptr[i]; j<ptr[(i+1)]; j++){
+                        t = target[j];
+                        if (t>=0){
+                            y[t] += rates[j]*a;
+                        }else{
+                            send[(-t-1)] += rates[j]*a;
+                        }
+                    }
+                }
+            }
+
+            //exchange the entries with the other workers
+            for (int j=0; j<send.length; j++){
+                out.writeDouble(send[j]);
+            }
+            out.flush();
+            for (int w=0; w<nWorkers; w++){
+                if (w!=worker){
+                    for (int j=0; j<receiveRows[w].length; j++){
+                        y[receiveRows[w][j]] += in.readDouble();
+                    }
+                }
+            }
+
+            if (weights[k]>0){
+                for (int i=0; i<n; i++){
+                    dist[i] += weights[k]*y[i];
+                }
+            }
+            swap = x;
+            x = y;
+            y = swap;
+        }
+
+        for (int i=0; i<n; i++){
+            out.writeDouble(dist[i]);
+        }
+        out.flush();
+
+    }
+
+}
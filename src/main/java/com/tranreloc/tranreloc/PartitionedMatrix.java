@@ -0,0 +1,209 @@
+/*
+ * Copyright 2022 Anders Reenberg Andersen.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.tranreloc.tranreloc;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+/**
+ *
+ * @author Anders Reenberg Andersen
+ */
+
+//Class for a transition rate matrix whose rows are held by the
+//worker processes of a WorkerPool. The state space is split into
+//contiguous ranges with the same number of states, and each
+//worker generates the rows of its range. Only the uniformization
+//rate and the entries that cross the ranges are known here. The
+//matrix is multiplied by the PartitionedSolver.
+
+public class PartitionedMatrix extends TransitionRateMatrix {
+
+    WorkerPool pool;
+    int[] bounds; //first state of each worker
+    long nonZeros;
+
+    //entries sent from worker s to worker w in each jump,
+    //indexed [s][w]
+    int[][] exchangeCount;
+
+    public PartitionedMatrix(StateSpace S, WorkerPool pool){
+
+        super(S);
+        this.pool = pool;
+
+    }
+
+    @Override
+    public void generateMatrix(){
+
+        System.out.print("Generating matrix on " + pool.size() + " workers...");
+
+        int nWorkers = pool.size();
+        int n = S.stateSpaceSize;
+        bounds = new int[(nWorkers+1)];
+        for (int w=1; w<=nWorkers; w++){
+            bounds[w] = (int)(((long)n*w)/nWorkers);
+        }
+
+        try {
+            DataOutputStream out;
+            for (int w=0; w<nWorkers; w++){
+                out = pool.out[w];
+                out.writeInt(WorkerPool.GENERATE);
+                out.writeInt(w);
+                out.writeInt(nWorkers);
+                for (int b : bounds){
+                    out.writeInt(b);
+                }
+                writeAssets(out);
+                out.flush();
+            }
+
+            //the rows are generated in parallel by the workers
+            DataInputStream in;
+            mxRate = Double.MIN_VALUE;
+            nonZeros = 0;
+            //all replies are read before the lists are forwarded,
+            //since a worker only reads once its reply is sent
+            int[][][] exchange = new int[nWorkers][nWorkers][];
+            exchangeCount = new int[nWorkers][nWorkers];
+            for (int s=0; s<nWorkers; s++){
+                in = pool.in[s];
+                mxRate = Math.max(mxRate,in.readDouble());
+                nonZeros += in.readLong();
+                for (int w=0; w<nWorkers; w++){
+                    if (w!=s){
+                        exchange[s][w] = new int[in.readInt()];
+                        exchangeCount[s][w] = exchange[s][w].length;
+                        for (int j=0; j<exchange[s][w].length; j++){
+                            exchange[s][w][j] = in.readInt();
+                        }
+                    }
+                }
+            }
+            for (int w=0; w<nWorkers; w++){
+                out = pool.out[w];
+                for (int s=0; s<nWorkers; s++){
+                    if (s!=w){
+                        out.writeInt(exchange[s][w].length);
+                        for (int state : exchange[s][w]){
+                            out.writeInt(state);
+                        }
+                    }
+                }
+                out.flush();
+            }
+        }catch(IOException e){
+            throw WorkerPool.failure(e);
+        }
+        transposed = true;
+
+        System.out.println(" done.");
+
+    }
+
+    private void writeAssets(DataOutputStream out) throws IOException {
+        //the parameters each worker needs to build the state space
+
+        out.writeInt(S.assets.length);
+        for (Asset asset : S.assets){
+            out.writeInt(asset.capacity);
+            out.writeDouble(asset.arrivalRate);
+            out.writeInt(asset.phDists.length);
+            for (PhaseTypeDistribution ph : asset.phDists){
+                out.writeInt(ph.numberOfPhases);
+                for (int i=0; i<ph.numberOfPhases; i++){
+                    out.writeDouble(ph.initialDistribution[i]);
+                }
+                for (int i=0; i<ph.numberOfPhases; i++){
+                    for (int j=0; j<ph.numberOfPhases; j++){
+                        out.writeDouble(ph.phaseTypeGenerator[i][j]);
+                    }
+                }
+            }
+        }
+
+    }
+
+    public long exchangedEntries(){
+        //entries relayed between the workers in each jump
+
+        long m=0;
+        for (int s=0; s<exchangeCount.length; s++){
+            for (int w=0; w<exchangeCount.length; w++){
+                m += exchangeCount[s][w];
+            }
+        }
+        return(m);
+    }
+
+    @Override
+    public void transposeTransitionMatrix(){
+        //the workers scatter their rows, which multiplies
+        //with the transposed matrix
+    }
+
+    @Override
+    public void convertToEmbeddedChain(){
+        //the workers scale the rows in each product
+
+        embedded = true;
+
+    }
+
+    @Override
+    public int numberOfNonZeros(){
+        return((int) Math.min(Integer.MAX_VALUE,nonZeros));
+    }
+
+    //the other solvers and single precision are rejected together
+    //with the workers (TranReloc.unsupportedOptions), and
+    //EvaluateSystem only hands this matrix to the PartitionedSolver
+    
+    @Override
+    public void multiply(double[] x, double[] y, int fromRow, int toRow){
+        throw new UnsupportedOperationException("The partitioned matrix is only multiplied by the workers.");
+    }
+
+    @Override
+    public void multiply(double[] x, double[] y, int nVectors, int fromRow, int toRow){
+        throw new UnsupportedOperationException("The partitioned matrix is only multiplied by the workers.");
+    }
+
+    @Override
+    public void multiply(float[] x, float[] y, int fromRow, int toRow){
+        throw new UnsupportedOperationException("The partitioned matrix is only multiplied by the workers.");
+    }
+
+    @Override
+    public void close(){
+        //the workers release their rows
+
+        try {
+            for (int w=0; w<pool.size(); w++){
+                pool.out[w].writeInt(WorkerPool.RELEASE);
+                pool.out[w].flush();
+            }
+        }catch(IOException e){
+            throw WorkerPool.failure(e);
+        }
+
+    }
+
+}
@@ -0,0 +1,155 @@
+/*
+ * Copyright 2022 Anders Reenberg Andersen.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.tranreloc.tranreloc;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+/**
+ *
+ * @author Anders Reenberg Andersen
+ */
+
+//Class for uniformization with the rows of the matrix held by
+//worker processes (see PartitionedMatrix). The coordinator sends
+//the Poisson weights and each worker's part of the distribution.
+//In each jump, the workers multiply their rows and send the
+//entries for the states of the other workers, which are relayed
+//here to their owners. At the end, the accumulated parts of the
+//distribution are collected. The entire segment is solved in one
+//pass, as in StateDistSolver (without steady-state detection).
+
+public class PartitionedSolver implements TransientSolver {
+
+    StateSpace S;
+    PartitionedMatrix tranMat;
+    PoissonWeights poisson;
+    double[][][] relay; //entries from worker s to worker w, indexed [s][w]
+
+    int matVecs; //matrix-vector products in the latest solve
+    double solveTime; //seconds used by the latest solve
+
+    public PartitionedSolver(){
+
+        poisson = new PoissonWeights();
+
+    }
+
+    public void setTransitionRateMatrix(StateSpace S, TransitionRateMatrix tranMat){
+
+        this.S = S;
+        this.tranMat = (PartitionedMatrix) tranMat;
+
+    }
+
+    public void setParallelExecutor(ParallelExecutor executor){
+        //the products run in the workers
+    }
+
+    public int getMatrixVectorProducts(){
+        return(matVecs);
+    }
+
+    public double getSolveTime(){
+        return(solveTime);
+    }
+
+    public void solve(StateDistribution stateDist, double t, double epsilon){
+
+        long startTime = System.currentTimeMillis();
+        WorkerPool pool = tranMat.pool;
+        int nWorkers = pool.size();
+        int[] bounds = tranMat.bounds;
+        double[] dist = stateDist.stateDist;
+        poisson.compute(tranMat.mxRate*t,epsilon);
+        allocateRelay(nWorkers);
+
+        System.out.println("Uniformization requires " + poisson.right + " iterations (accumulating from " + poisson.left + ").");
+        System.out.print("Solving on " + nWorkers + " workers (" + tranMat.exchangedEntries() + " entries exchanged per jump)...");
+        try {
+            DataOutputStream out;
+            for (int w=0; w<nWorkers; w++){
+                out = pool.out[w];
+                out.writeInt(WorkerPool.SOLVE);
+                out.writeDouble(tranMat.mxRate);
+                out.writeInt(poisson.right);
+                for (int k=0; k<=poisson.right; k++){
+                    out.writeDouble(poisson.weight(k));
+                }
+                for (int i=bounds[w]; i<bounds[(w+1)]; i++){
+                    out.writeDouble(dist[i]);
+                }
+                out.flush();
+            }
+
+            //each worker sends all of its entries before it reads
+            //the entries of the others, so they are read first
+            DataInputStream in;
+            for (int k=1; k<=poisson.right; k++){
+                for (int s=0; s<nWorkers; s++){
+                    in = pool.in[s];
+                    for (int w=0; w<nWorkers; w++){
+                        if (w!=s){
+                            for (int j=0; j<relay[s][w].length; j++){
+                                relay[s][w][j] = in.readDouble();
+                            }
+                        }
+                    }
+                }
+                for (int w=0; w<nWorkers; w++){
+                    out = pool.out[w];
+                    for (int s=0; s<nWorkers; s++){
+                        if (s!=w){
+                            for (int j=0; j<relay[s][w].length; j++){
+                                out.writeDouble(relay[s][w][j]);
+                            }
+                        }
+                    }
+                    out.flush();
+                }
+            }
+
+            for (int w=0; w<nWorkers; w++){
+                in = pool.in[w];
+                for (int i=bounds[w]; i<bounds[(w+1)]; i++){
+                    dist[i] = in.readDouble();
+                }
+            }
+        }catch(IOException e){
+            throw WorkerPool.failure(e);
+        }
+        matVecs = poisson.right;
+        stateDist.normalizeDist();
+        System.out.println(" done.");
+        solveTime = (double) (System.currentTimeMillis()-startTime)/1000.0;
+
+    }
+
+    private void allocateRelay(int nWorkers){
+        //buffers of the entries exchanged with the current matrix
+
+        relay = new double[nWorkers][nWorkers][];
+        for (int s=0; s<nWorkers; s++){
+            for (int w=0; w<nWorkers; w++){
+                relay[s][w] = new double[tranMat.exchangeCount[s][w]];
+            }
+        }
+
+    }
+
+}
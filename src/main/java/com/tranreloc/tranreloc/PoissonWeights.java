@@ -0,0 +1,153 @@
+/*
+ * Copyright 2022 Anders Reenberg Andersen.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.tranreloc.tranreloc;
+
+/**
+ *
+ * @author Anders Reenberg Andersen
+ */
+
+//Class for the truncated Poisson weights used in
+//uniformization (in the spirit of Fox and Glynn, 1988).
+//The weights are evaluated relative to the mode of the
+//distribution, so exp(-lambda) never has to be evaluated
+//and nothing underflows for large lambda.
+
+public class PoissonWeights {
+
+    double lambda; //the Poisson rate (uniformization rate x time)
+    int left,right; //truncation points
+    double[] weights; //unnormalized weights of left,...,right
+    double totalWeight; //sum of all evaluated weights
+
+    public PoissonWeights(){
+
+        weights = new double[16];
+
+    }
+
+    public PoissonWeights(double lambda, double epsilon){
+
+        this();
+        compute(lambda,epsilon);
+
+    }
+
+    public void compute(double lambda, double epsilon){
+        //evaluates the weights such that the probability mass
+        //outside left,...,right is at most epsilon (at most
+        //epsilon/2 in each tail).
+        //the weight array is reused when it is large enough.
+
+        this.lambda = lambda;
+
+        //weights below this value (relative to the mode)
+        //are negligible for any tolerance in use
+        double cutoff = Math.min(1e-20,epsilon*1e-10);
+
+        int mode = (int) Math.floor(lambda);
+        if (lambda<=0){
+            left=0; right=0;
+            ensureLength(1);
+            weights[0]=1.0;
+            totalWeight=1.0;
+            return;
+        }
+
+        //find the range of non-negligible weights
+        double w=1.0;
+        int kLow=mode;
+        while (kLow>0 && w>cutoff){
+            w *= (double)kLow/lambda;
+            kLow--;
+        }
+        w=1.0;
+        int kHigh=mode;
+        while (w>cutoff){
+            w *= lambda/(double)(kHigh+1);
+            kHigh++;
+        }
+
+        //evaluate the weights outward from the mode
+        ensureLength(kHigh-kLow+1);
+        weights[(mode-kLow)]=1.0;
+        for (int k=mode; k>kLow; k--){
+            weights[(k-1-kLow)] = weights[(k-kLow)]*(double)k/lambda;
+        }
+        for (int k=mode; k<kHigh; k++){
+            weights[(k+1-kLow)] = weights[(k-kLow)]*lambda/(double)(k+1);
+        }
+
+        //sum from the smallest weights toward the mode
+        totalWeight=0;
+        for (int k=kLow; k<mode; k++){
+            totalWeight += weights[(k-kLow)];
+        }
+        for (int k=kHigh; k>=mode; k--){
+            totalWeight += weights[(k-kLow)];
+        }
+
+        //truncate the tails
+        double tailMass = 0.5*epsilon*totalWeight;
+        double cum=0;
+        left=kLow;
+        while (left<mode && (cum+weights[(left-kLow)])<=tailMass){
+            cum += weights[(left-kLow)];
+            left++;
+        }
+        cum=0;
+        right=kHigh;
+        while (right>mode && (cum+weights[(right-kLow)])<=tailMass){
+            cum += weights[(right-kLow)];
+            right--;
+        }
+
+        //move the retained weights to the front of the array
+        if (left>kLow){
+            System.arraycopy(weights,(left-kLow),weights,0,(right-left+1));
+        }
+
+    }
+
+    public double weight(int k){
+        //returns the normalized weight of term k (zero
+        //outside the truncation points)
+
+        if (k<left || k>right){
+            return(0.0);
+        }
+        return(weights[(k-left)]/totalWeight);
+    }
+
+    public double tailWeight(int k){
+        //returns the normalized weight of the terms k,k+1,...
+        //up to the right truncation point
+
+        double sm=0;
+        for (int j=right; j>=Math.max(k,left); j--){
+            sm += weights[(j-left)];
+        }
+        return(sm/totalWeight);
+    }
+
+    private void ensureLength(int l){
+        if (weights.length<l){
+            weights = new double[Math.max(l,weights.length*2)];
+        }
+    }
+
+}
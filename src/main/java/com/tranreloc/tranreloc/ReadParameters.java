@@ -38,7 +38,9 @@ public class ReadParameters {
     double[][] arrivalRates;
     int[][] capacity;
     int[] occupied;
+    int[][] scenarios; //occupation in each row of the file (the first is occupied)
     PhaseTypeDistribution[][][] phDists;
+    double[] durations; //duration of each segment (null if not given)
             
     
     public ReadParameters(String paramDir){
@@ -50,6 +52,30 @@ public class ReadParameters {
         readNumberOfAssets();        
         readCurrentlyOccupied();
         readRentalTime();
+        readSegmentDurations();
+        
+    }
+    
+    private void readSegmentDurations(){
+        //optional file with a header and the duration of each
+        //segment in a row. without it, all segments have the
+        //same length.
+        
+        String fileName = paramDir + "/SegmentDurations";
+        if (!new File(fileName).exists()){
+            return;
+        }
+        double[][] temp = stringToDouble(fileToString(fileName),",",true);
+        
+        if (temp.length!=arrivalRates.length){
+            System.out.println("Warning. " + fileName + " holds " + temp.length + " durations for "
+                    + arrivalRates.length + " segments.\n" + "Using segments of equal length.");
+            return;
+        }
+        durations = new double[temp.length];
+        for (int i=0; i<durations.length; i++){
+            durations[i] = temp[i][0];
+        }
         
     }
     
@@ -107,10 +133,13 @@ public class ReadParameters {
         String fileName = paramDir + "/CurrentlyOccupied"; 
         double[][] temp = stringToDouble(fileToString(fileName),",",true);
         
-        occupied = new int[temp[0].length];
-        for (int i=0; i<occupied.length; i++){
-            occupied[i] = (int) temp[0][i];
+        scenarios = new int[temp.length][temp[0].length];
+        for (int r=0; r<temp.length; r++){
+            for (int i=0; i<temp[r].length; i++){
+                scenarios[r][i] = (int) temp[r][i];
+            }
         }
+        occupied = scenarios[0];
         
     }
     
@@ -32,7 +32,6 @@ public class RelocFunction {
     int fromAsset,toAsset;
     int nAssets;
     int[] prodVec;
-    int position;
     
     double[] relProb;
             
@@ -68,8 +67,9 @@ public class RelocFunction {
         //store relocation probability corresponding to
         //the array of blocked assets
         
-        //derive position in array
-        position = 0;
+        //derive position in array (a local, since the rows of
+        //the matrix may be generated by several threads)
+        int position = 0;
         if (blockedAssets!=null){
             
             for (int i=0; i<blockedAssets.length; i++){
@@ -87,7 +87,7 @@ public class RelocFunction {
         //to the array of blocked assets.
         
         //derive position in array
-        position = 0;
+        int position = 0;
         if (blockedAssets!=null){
             
             for (int i=0; i<blockedAssets.length; i++){
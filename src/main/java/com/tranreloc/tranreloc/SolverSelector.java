@@ -0,0 +1,162 @@
+/*
+ * Copyright 2022 Anders Reenberg Andersen.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.tranreloc.tranreloc;
+
+/**
+ *
+ * @author Anders Reenberg Andersen
+ */
+
+//Class for choosing the solver of a segment from cheap
+//statistics of its transition rate matrix. The cost of each
+//method is estimated in units of one sweep over the matrix,
+//and the cheapest method is selected.
+
+public class SolverSelector {
+    
+    int subspaceDimension; //dimension used by the Krylov solver
+    boolean stationaryAllowed; //consider the stationary solution
+    String stationaryMethod;
+    double mixingTime; //exits of the slowest state before the segment is considered mixed
+    
+    //statistics of the latest selection
+    int nStates;
+    int nonZeros; //off-diagonal elements
+    double lambda; //uniformization rate x time
+    double time; //length of the segment
+    double epsilon; //tolerance of the solve
+    double minRate; //smallest positive exit rate
+    double stiffness; //largest over smallest positive exit rate
+    
+    public SolverSelector(){
+        
+        subspaceDimension = 30;
+        stationaryAllowed = false;
+        stationaryMethod = "sor";
+        mixingTime = 50;
+        
+    }
+    
+    public void setSubspaceDimension(int m){
+        
+        subspaceDimension = m;
+        
+    }
+    
+    public void setStationaryAllowed(boolean stationaryAllowed){
+        //the stationary distribution is only an approximation
+        //of the transient one, so it must be enabled explicitly
+        
+        this.stationaryAllowed = stationaryAllowed;
+        
+    }
+    
+    public String select(StateSpace S, TransitionRateMatrix tranMat, double t, double epsilon){
+        //returns the name of the method to use for the segment
+        
+        this.time = t;
+        this.epsilon = epsilon;
+        computeStatistics(S,tranMat,t);
+        
+        String method;
+        if (stationaryAllowed && minRate*t>=mixingTime){
+            method = stationaryMethod;
+        }else{
+            method = "uniformization";
+            double cost = uniformizationCost();
+            if (krylovCost()<cost){
+                method = "krylov";
+                cost = krylovCost();
+            }
+            if (odeCost()<cost){
+                method = "ode";
+            }
+        }
+        
+        System.out.println("Selected " + method + " (states: " + nStates
+                + ", non-zeros: " + nonZeros + ", rate x time: " + lambda
+                + ", stiffness: " + stiffness + ").");
+        
+        return(method);
+    }
+    
+    private void computeStatistics(StateSpace S, TransitionRateMatrix tranMat, double t){
+        
+        nStates = S.stateSpaceSize;
+        nonZeros = tranMat.numberOfNonZeros();
+        lambda = tranMat.mxRate*t;
+        
+        //the exit rates are the negated diagonal of the generator
+        double rate,mxRate=0;
+        minRate = Double.MAX_VALUE;
+        for (int i=0; i<nStates; i++){
+            rate = -tranMat.generatorDiagonal(i);
+            if (rate>0){
+                minRate = Math.min(minRate,rate);
+                mxRate = Math.max(mxRate,rate);
+            }
+        }
+        if (mxRate==0){
+            minRate = 0;
+            stiffness = 1;
+        }else{
+            stiffness = mxRate/minRate;
+        }
+        
+    }
+    
+    public double uniformizationCost(){
+        //the right truncation point of the Poisson weights
+        //(roughly five standard deviations above the mean)
+        
+        return(lambda+5.0*Math.sqrt(lambda)+5.0);
+    }
+    
+    public double krylovCost(){
+        //each step builds a basis of m+1 vectors, which costs
+        //m+1 products plus the orthogonalization (about m^2/2
+        //dot products and as many vector updates). the number
+        //of steps was observed to grow roughly with the square
+        //root of the rate x time, both for stiff and non-stiff
+        //segments.
+        
+        int m = subspaceDimension;
+        double perStep = (m+1)+(double)m*m*nStates/(double)(nonZeros+2*nStates);
+        double steps = 1.0+0.25*Math.sqrt(lambda);
+        
+        return(steps*perStep);
+    }
+    
+    public double odeCost(){
+        //the steps of the implicit method follow the slow
+        //dynamics, so the cost does not depend on the largest
+        //rate. the local error of the second order method
+        //scales with h^3 and is kept below epsilon*h/t, so the
+        //number of steps grows with (minRate*t)^1.5/sqrt(epsilon).
+        //each step was observed to take about 14 products,
+        //including the linear solves, plus the vector updates
+        //of BiCGSTAB. the first step is scaled to the largest
+        //rate and grows by at most a factor 5 per step, so the
+        //initial transient adds about log5(stiffness) steps.
+        
+        double steps = Math.sqrt(1.0/epsilon)*(0.02+0.25*Math.pow(minRate*time,1.5));
+        steps += Math.log(stiffness)/Math.log(5.0);
+        
+        return(steps*17.0);
+    }
+    
+}
@@ -24,132 +24,862 @@ package com.tranreloc.tranreloc;
 //Class for solving the state distribution associated
 //with the give transition rate matrix
 
-public class StateDistSolver {
+public class StateDistSolver implements TransientSolver {
 
     StateSpace S;
     TransitionRateMatrix tranMat;
     
+    ParallelExecutor executor; //runs the matrix-vector products
+    int[] blocks; //row blocks of the transposed matrix
+    ParallelExecutor.RowBlockTask jumpTask;
+    
+    //workspace (ping-pong buffers reused across steps,
+    //segments and solves)
+    double[] yOld,yNew;
+    float[] yOldSingle,yNewSingle; //used instead in single precision
+    boolean singlePrecision;
+    
+    double[] dist; //the distribution being accumulated
+    
+    //distributions at intermediate output times, accumulated
+    //from the same iterates with their own Poisson weights
+    PoissonWeights[] outputPoisson;
+    double[][] outputDists;
+    double[] outputScale; //weights of the current iteration
+    
+    //workspace of several distributions solved together
+    //(element i of distribution v at i*nVectors+v)
+    double[] yOldBlock,yNewBlock;
+    double[][] dists; //the distributions being accumulated
+    int nVectors; //vectors in the block (padded to a multiple of four)
+    ParallelExecutor.RowBlockTask batchJumpTask;
+    double scale; //Poisson weight of the current iteration
+    PoissonWeights poisson; //reused across solves
+    
+    //steady-state detection
+    boolean steadyStateDetection;
+    double steadyStateTol; //largest remaining error (negative: derive from epsilon)
+    double[] blockChange; //largest change in each row block
+    double[] changeHistory; //largest change of the latest iterations
+    int steadyStateIteration; //iteration where steady state was detected (-1 if not)
+    
+    //adaptive truncation: states whose probability falls below
+    //the threshold are dropped from the iterates, and only the
+    //rows that can receive probability from the remaining
+    //(active) states are multiplied
+    double truncationThreshold; //non-positive: no truncation
+    boolean truncating; //truncation is used in the current solve
+    TransitionRateMatrix patternMat; //matrix of the target pattern
+    int[] targetPtr,targets; //states reached from each state in one jump
+    int[] active,activeOld; //states with probability in the latest two iterates
+    int nActive,nActiveOld;
+    int[] candidates; //rows multiplied in the current jump
+    int nCandidates;
+    int[] candidateBlocks; //blocks of the candidate list
+    double[] candidateChange; //largest change in each candidate block
+    int[] visited; //latest stamp where each state was made a candidate
+    int stamp;
+    double[] blockDiscarded; //probability dropped in each block
+    double discardedMass; //probability dropped in the latest solve
+    int largestActive; //largest number of active states in the latest solve
+    ParallelExecutor.RowBlockTask activeJumpTask;
+    double activeThreshold; //threshold of the current active pass (zero: exact)
+    
+    //sparse start: a distribution with few nonzero states is
+    //propagated through its active set (the frontier) until
+    //the active set is dense, and then by full sweeps
+    boolean sparseStart;
+    double frontierLimit; //fraction of the states where full sweeps take over
+    int frontierIterations; //jumps done on the frontier in the latest solve (-1 if none)
+    
+    int matVecs; //matrix-vector products in the latest solve
+    double solveTime; //seconds used by the latest solve
+    
+    
+    public StateDistSolver(){
+        
+        executor = new ParallelExecutor(1);
+        jumpTask = this::jump;
+        batchJumpTask = this::batchJump;
+        activeJumpTask = this::activeJump;
+        poisson = new PoissonWeights();
+        steadyStateDetection = true;
+        steadyStateTol = -1;
+        sparseStart = true;
+        frontierLimit = 0.25;
+        
+    }
     
     public StateDistSolver(StateSpace S, TransitionRateMatrix tranMat){
      
+        this();
+        setTransitionRateMatrix(S,tranMat);
+        
+    }
+    
+    public void setTransitionRateMatrix(StateSpace S, TransitionRateMatrix tranMat){
+        //install the matrix of the next solve while
+        //keeping the workspace
+        
         this.S = S;
         this.tranMat = tranMat;
         
+    }
+    
+    public void setNumberOfThreads(int nThreads){
+        //the results are identical for any number of threads
+        
+        setParallelExecutor(new ParallelExecutor(nThreads));
+        
+    }
+    
+    public void setSteadyStateDetection(boolean steadyStateDetection){
+        //stop iterating when the embedded chain is stationary
+        //and add the remaining Poisson terms in closed form
+        
+        this.steadyStateDetection = steadyStateDetection;
+        
+    }
+    
+    public void setSteadyStateTolerance(double steadyStateTol){
+        //largest estimated distance of any state probability
+        //to its stationary value for the chain to be considered
+        //stationary. by default, a tenth of the uniformization
+        //tolerance.
+        
+        this.steadyStateTol = steadyStateTol;
+        
+    }
+    
+    public void setSinglePrecision(boolean singlePrecision){
+        //keep the iterates (and the embedded chain) in single
+        //precision. the iterates are still accumulated in double.
+        
+        this.singlePrecision = singlePrecision;
         
     }
     
+    public void setTruncationThreshold(double truncationThreshold){
+        //drop states whose probability is below the threshold
+        //from the iterates. the dropped probability is reported
+        //and bounds the error of the accumulated distribution
+        //(before it is normalized).
+        
+        this.truncationThreshold = truncationThreshold;
+        
+    }
     
+    public void setSparseStart(boolean sparseStart){
+        //propagate sparse distributions (e.g. the occupied
+        //capacity at the start of segment 0) only through the
+        //states they can reach. the results are identical.
+        
+        this.sparseStart = sparseStart;
+        
+    }
+    
+    public void setFrontierLimit(double frontierLimit){
+        //fraction of the states in the frontier at which the
+        //solver switches to full sweeps
+        
+        this.frontierLimit = frontierLimit;
+        
+    }
+    
+    public void setParallelExecutor(ParallelExecutor executor){
+        
+        this.executor = executor;
+        
+    }
+    
+    public int getMatrixVectorProducts(){
+        return(matVecs);
+    }
+    
+    public double getSolveTime(){
+        return(solveTime);
+    }
+    
+    public double getDiscardedMass(){
+        return(discardedMass);
+    }
+    
+    public void solve(StateDistribution stateDist, double t, double epsilon){
+        
+        uniformization(stateDist,t,epsilon);
+        
+    }
     
     public void uniformization(StateDistribution stateDist, double t,
             double epsilon){
         
 //        tranMat.printTransitionRateMatrix();
         
-        tranMat.transposeTransitionMatrix();
-        tranMat.convertToEmbeddedChain();
+        long startTime = System.currentTimeMillis();
+        prepare(t,epsilon,1);
+        
+        System.out.println("Uniformization requires " + poisson.right + " iterations (accumulating from " + poisson.left + ").");
+        System.out.print("Solving...");
+        uniformizationSinglePass(stateDist,(steadyStateTol<0) ? 0.1*epsilon : steadyStateTol);
+        stateDist.normalizeDist();
+        if (steadyStateIteration>=0){
+            System.out.print(" steady state after " + steadyStateIteration + " iterations.");
+        }
+        if (truncating){
+            System.out.print(" discarded " + discardedMass + " (at most " + largestActive
+                    + " of " + S.stateSpaceSize + " states active).");
+        }else if (frontierIterations>=0){
+            System.out.print(" " + frontierIterations + " jumps on the frontier (at most " + largestActive
+                    + " of " + S.stateSpaceSize + " states).");
+        }
+        System.out.println(" done.");
+        solveTime = (double) (System.currentTimeMillis()-startTime)/1000.0;
+        
+    }
+    
+    public StateDistribution[] uniformization(StateDistribution stateDist, double t,
+            double[] outputTimes, double epsilon){
+        //advances the distribution to time t and returns the
+        //distributions at the output times (0<time<=t) found in
+        //the same pass. the iterates of the embedded chain do not
+        //depend on the time, so each output only needs its own
+        //Poisson weights and an accumulated vector.
         
+        long startTime = System.currentTimeMillis();
+        prepare(t,epsilon,1);
         
-        //calculate if mxRate*t causes underflow
-        double tUnderflow = 70.0/tranMat.mxRate;
-        int steps = 1;
-        double[] tvec = {t};
-        //if mxRate*t causes underflow, use uniformization in parts
-        if (t>tUnderflow){ 
-            steps = (int) Math.ceil(t/tUnderflow);
-            tvec = new double[steps];
-            for (int i=0; i<(steps-1); i++){
-                tvec[i] = tUnderflow;
-            }
-            tvec[(steps-1)] = t - tUnderflow*(steps-1);
+        int m = outputTimes.length;
+        outputPoisson = new PoissonWeights[m];
+        outputDists = new double[m][S.stateSpaceSize];
+        outputScale = new double[m];
+        for (int j=0; j<m; j++){
+            outputPoisson[j] = new PoissonWeights(tranMat.mxRate*Math.min(outputTimes[j],t),epsilon);
         }
         
-        System.out.println("Uniformization requires " + steps + " steps.");
-        System.out.print("Solving");
-        for (int stp=0; stp<steps; stp++){
-            uniformizationInParts(stateDist,tvec[stp],epsilon);
-            stateDist.normalizeDist();
-            System.out.print(".");
+        System.out.println("Uniformization requires " + poisson.right + " iterations (accumulating from " + poisson.left + ").");
+        System.out.print("Solving (" + m + " output times)...");
+        uniformizationSinglePass(stateDist,(steadyStateTol<0) ? 0.1*epsilon : steadyStateTol);
+        stateDist.normalizeDist();
+        if (steadyStateIteration>=0){
+            System.out.print(" steady state after " + steadyStateIteration + " iterations.");
+        }
+        if (truncating){
+            System.out.print(" discarded " + discardedMass + " (at most " + largestActive
+                    + " of " + S.stateSpaceSize + " states active).");
+        }else if (frontierIterations>=0){
+            System.out.print(" " + frontierIterations + " jumps on the frontier (at most " + largestActive
+                    + " of " + S.stateSpaceSize + " states).");
         }
         System.out.println(" done.");
         
+        StateDistribution[] outputs = new StateDistribution[m];
+        for (int j=0; j<m; j++){
+            outputs[j] = new StateDistribution();
+            outputs[j].setStateSpace(S);
+            outputs[j].stateDist = outputDists[j];
+            outputs[j].normalizeDist();
+        }
+        outputPoisson = null;
+        outputDists = null;
+        solveTime = (double) (System.currentTimeMillis()-startTime)/1000.0;
+        
+        return(outputs);
     }
     
-    private void uniformizationInParts(StateDistribution stateDist, double t,
+    public void uniformization(StateDistribution[] stateDists, double t,
             double epsilon){
+        //solves several initial distributions over the same
+        //segment. the distributions are advanced together, so
+        //each element of the matrix is read once per jump for
+        //all of them. the iterates are kept in double precision.
+        
+        int n = S.stateSpaceSize;
+        if ((long)n*(stateDists.length+3)>Integer.MAX_VALUE-8){
+            System.out.println("Warning: The distributions do not fit in one block. Solving them one by one.");
+            for (int v=0; v<stateDists.length; v++){
+                uniformization(stateDists[v],t,epsilon);
+            }
+            return;
+        }
+        
+        long startTime = System.currentTimeMillis();
+        prepare(t,epsilon,stateDists.length);
+        
+        System.out.println("Uniformization requires " + poisson.right + " iterations (accumulating from " + poisson.left + ").");
+        System.out.print("Solving " + stateDists.length + " distributions...");
+        uniformizationBatchPass(stateDists,(steadyStateTol<0) ? 0.1*epsilon : steadyStateTol);
+        for (int v=0; v<stateDists.length; v++){
+            stateDists[v].normalizeDist();
+        }
+        if (steadyStateIteration>=0){
+            System.out.print(" steady state after " + steadyStateIteration + " iterations.");
+        }
+        System.out.println(" done.");
+        solveTime = (double) (System.currentTimeMillis()-startTime)/1000.0;
+        
+    }
+    
+    private void prepare(double t, double epsilon, int nVectors){
+        //embedded chain, row blocks and Poisson weights of a
+        //solve with nVectors distributions
+        
+        if (!tranMat.transposed){
+            tranMat.transposeTransitionMatrix();
+        }
+        if (!tranMat.embedded){
+            tranMat.setSinglePrecision(singlePrecision);
+            tranMat.convertToEmbeddedChain();
+        }
+        blocks = tranMat.partitionRows(executor);
+        blockChange = new double[(blocks.length-1)];
+        changeHistory = new double[10];
+        
+        //the active set needs the stored matrix in double precision
+        truncating = truncationThreshold>0;
+        discardedMass = 0;
+        if (truncating && (singlePrecision || tranMat.rowPtr==null || nVectors>1)){
+            System.out.println("Warning: Truncation needs one distribution and the stored CSR matrix in double precision. "
+                    + "Solving without truncation.");
+            truncating = false;
+        }
+        
+        //the Poisson weights are evaluated relative to their
+        //mode, so the entire segment is solved in one pass
+        //without underflow
+        poisson.compute(tranMat.mxRate*t,epsilon);
+        
+    }
+    
+    private void uniformizationSinglePass(StateDistribution stateDist, double ssTol){
         
-        //get number of iterations
-        double mxRatetk,mxRatet = tranMat.mxRate*t;
-        int K = (int) numbiter(mxRatet,epsilon);
+        frontierIterations = -1;
+        if (truncating || sparse(stateDist)){
+            uniformizationActivePass(stateDist,ssTol);
+            return;
+        }
+        
+        int n = S.stateSpaceSize;
+        ensureWorkspace(n);
+        dist = stateDist.stateDist;
+        steadyStateIteration = -1;
+        matVecs = 0;
         
-        double[] yOld = new double[stateDist.stateDist.length];
-        double[] yNew;
-        for (int i=0; i<yOld.length; i++){
-            yOld[i]=stateDist.stateDist[i];
+        //the term k=0
+        scale = poisson.weight(0);
+        if (singlePrecision){
+            for (int i=0; i<n; i++){
+                yOldSingle[i] = (float) dist[i];
+                dist[i] = scale*yOldSingle[i];
+            }
+        }else{
+            System.arraycopy(dist,0,yOld,0,n);
+            for (int i=0; i<n; i++){
+                dist[i] = scale*yOld[i];
+            }
+        }
+        if (outputDists!=null){
+            for (int j=0; j<outputDists.length; j++){
+                outputScale[j] = outputPoisson[j].weight(0);
+            }
+            accumulateOutputs(0,n,yOld,yOldSingle);
         }
-        int jj;
+        
+        fullSweeps(1,ssTol);
+        
+    }
+    
+    private void fullSweeps(int firstK, double ssTol){
+        //the iterations firstK,...,right with every row
+        //multiplied in each jump. yOld holds iterate firstK-1.
+        
+        int n = S.stateSpaceSize;
+        double[] swap;
+        float[] swapSingle;
         
         //iterate
-        for(int k=1; k<=K; k++){
-            yNew = new double[yOld.length];
-            mxRatetk = mxRatet/(double)k;
+        for(int k=firstK; k<=poisson.right; k++){
+            //zero below the left truncation point, where
+            //the iterates are not accumulated
+            scale = poisson.weight(k);
+            if (outputDists!=null){
+                for (int j=0; j<outputDists.length; j++){
+                    outputScale[j] = outputPoisson[j].weight(k);
+                }
+            }
+            
+            //method for the transposed transition matrix.
+            //the row blocks are multiplied in parallel
+            executor.forEachBlock(blocks,jumpTask);
+            matVecs++;
             
-            //method for the non-transposed transition matrix
-            //Note: if the below is uncommented, then the transposeTransitionMatrix()
-            //method in the uniformization method must be commented along with
-            //the code for the transposed transition matrix below.
-//            for (int i=0; i<yNew.length; i++){
-//                for (int j=0; j<tranMat.rates.length; j++){
-//                    for (jj=0; jj<tranMat.rates[j].length; jj++){
-//                        if (tranMat.columnIndices[j][jj]==i){
-//                            yNew[i] += (yOld[j]*tranMat.rates[j][jj]*mxRatetk);
-//                        }
-//                    }
-//                }
-//                stateDist.stateDist[i] += yNew[i];
-//            }
+            //the new iterate becomes the old one
+            swap = yOld;
+            yOld = yNew;
+            yNew = swap;
+            swapSingle = yOldSingle;
+            yOldSingle = yNewSingle;
+            yNewSingle = swapSingle;
             
-            //method for the transposed transition matrix
-            for (int i=0; i<yNew.length; i++){
-                for (jj=0; jj<tranMat.rates[i].length; jj++){
-                    yNew[i] += (yOld[tranMat.columnIndices[i][jj]]*tranMat.rates[i][jj]*mxRatetk);
+            //once the iterates no longer change, all remaining
+            //terms equal the current iterate
+            if (steadyStateDetection && k<poisson.right && stationary(k,blockChange,ssTol)){
+                steadyStateIteration = k;
+                scale = poisson.tailWeight(k+1);
+                for (int i=0; i<n; i++){
+                    dist[i] += scale*(singlePrecision ? yOldSingle[i] : yOld[i]);
+                }
+                if (outputDists!=null){
+                    for (int j=0; j<outputDists.length; j++){
+                        outputScale[j] = outputPoisson[j].tailWeight(k+1);
+                    }
+                    accumulateOutputs(0,n,yOld,yOldSingle);
+                }
+                break;
+            }
+            
+        }
+        dist = null;
+        
+    }
+    
+    private boolean sparse(StateDistribution stateDist){
+        //whether the distribution is propagated through its
+        //frontier, which needs the stored CSR matrix in double
+        //precision
+        
+        if (!sparseStart || singlePrecision || tranMat.rowPtr==null){
+            return(false);
+        }
+        int n = S.stateSpaceSize;
+        long limit = (long)(frontierLimit*n);
+        int nz=0;
+        for (int i=0; i<n; i++){
+            if (stateDist.stateDist[i]!=0){
+                nz++;
+                if (nz>limit){
+                    return(false);
+                }
+            }
+        }
+        
+        return(true);
+    }
+    
+    private void uniformizationActivePass(StateDistribution stateDist, double ssTol){
+        //as uniformizationSinglePass, but the iterates are zero
+        //outside the active states, and each jump only multiplies
+        //the rows reached from them. when truncating, states below
+        //the threshold are dropped from the iterates. otherwise,
+        //the active states are the nonzero states, and full sweeps
+        //take over once the frontier is dense.
+        
+        int n = S.stateSpaceSize;
+        ensureWorkspace(n);
+        ensureActiveSet(n);
+        dist = stateDist.stateDist;
+        steadyStateIteration = -1;
+        matVecs = 0;
+        activeThreshold = truncating ? truncationThreshold : 0;
+        double[] swap;
+        int[] swapList;
+        
+        //the term k=0 (the initial distribution is truncated too)
+        java.util.Arrays.fill(yOld,0,n,0.0);
+        java.util.Arrays.fill(yNew,0,n,0.0);
+        scale = poisson.weight(0);
+        nActive = 0;
+        nActiveOld = 0;
+        for (int i=0; i<n; i++){
+            if (dist[i]!=0 && dist[i]>=activeThreshold){
+                yOld[i] = dist[i];
+                active[nActive] = i;
+                nActive++;
+            }else{
+                discardedMass += dist[i];
+            }
+            dist[i] = scale*yOld[i];
+        }
+        largestActive = nActive;
+        if (outputDists!=null){
+            for (int j=0; j<outputDists.length; j++){
+                outputScale[j] = outputPoisson[j].weight(0);
+            }
+            accumulateOutputs(0,n,yOld,null);
+        }
+        
+        //iterate
+        for(int k=1; k<=poisson.right; k++){
+            scale = poisson.weight(k);
+            if (outputDists!=null){
+                for (int j=0; j<outputDists.length; j++){
+                    outputScale[j] = outputPoisson[j].weight(k);
                 }
-                stateDist.stateDist[i] += yNew[i];
             }
-
             
+            //yNew still holds the iterate before yOld
+            for (int j=0; j<nActiveOld; j++){
+                yNew[activeOld[j]] = 0;
+            }
+            collectCandidates();
+            if (!truncating && nCandidates>frontierLimit*n){
+                //yOld holds the iterate k-1 in full, and a full
+                //sweep overwrites every row of yNew
+                frontierIterations = k-1;
+                fullSweeps(k,ssTol);
+                return;
+            }
+            candidateBlocks = executor.partitionEqual(nCandidates);
+            java.util.Arrays.fill(candidateChange,0.0);
+            java.util.Arrays.fill(blockDiscarded,0.0);
+            executor.forEachBlock(candidateBlocks,activeJumpTask);
+            matVecs++;
+            for (int b=0; b<blockDiscarded.length; b++){
+                discardedMass += blockDiscarded[b];
+            }
             
-            for (int i=0; i<yOld.length; i++){
-                yOld[i]=yNew[i];
+            //the remaining candidates form the new active set
+            int m=0;
+            for (int j=0; j<nCandidates; j++){
+                if (yNew[candidates[j]]!=0){
+                    activeOld[m] = candidates[j];
+                    m++;
+                }
             }
+            swapList = active;
+            active = activeOld;
+            activeOld = swapList;
+            nActiveOld = nActive;
+            nActive = m;
+            largestActive = Math.max(largestActive,nActive);
+            swap = yOld;
+            yOld = yNew;
+            yNew = swap;
             
+            if (steadyStateDetection && k<poisson.right && stationary(k,candidateChange,ssTol)){
+                steadyStateIteration = k;
+                scale = poisson.tailWeight(k+1);
+                for (int j=0; j<nActive; j++){
+                    dist[active[j]] += scale*yOld[active[j]];
+                }
+                if (outputDists!=null){
+                    for (int j=0; j<outputDists.length; j++){
+                        outputScale[j] = outputPoisson[j].tailWeight(k+1);
+                    }
+                    accumulateOutputs(0,n,yOld,null);
+                }
+                break;
+            }
+            
+        }
+        if (!truncating){
+            frontierIterations = matVecs;
+        }
+        dist = null;
+        
+    }
+    
+    private void collectCandidates(){
+        //the active states and the states reached from them.
+        //each state is listed once, in the order it is found.
+        
+        stamp++;
+        int m=0;
+        int s,t;
+        for (int j=0; j<nActive; j++){
+            s = active[j];
+            if (visited[s]!=stamp){
+                visited[s] = stamp;
+                candidates[m] = s;
+                m++;
+            }
+            for (int k=targetPtr[s]; k<targetPtr[(s+1)]; k++){
+                t = targets[k];
+                if (visited[t]!=stamp){
+                    visited[t] = stamp;
+                    candidates[m] = t;
+                    m++;
+                }
+            }
+        }
+        nCandidates = m;
+        
+    }
+    
+    private void activeJump(int from, int to){
+        //one jump for the candidates from,...,to-1. probabilities
+        //below the threshold are dropped before they are
+        //accumulated.
+        
+        tranMat.multiplyRows(yOld,yNew,candidates,from,to);
+        
+        double mx=0,dropped=0;
+        int i;
+        for (int j=from; j<to; j++){
+            i = candidates[j];
+            if (yNew[i]<activeThreshold){
+                dropped += yNew[i];
+                yNew[i] = 0;
+            }
+            if (scale>0){
+                dist[i] += scale*yNew[i];
+            }
+            if (outputDists!=null){
+                for (int o=0; o<outputDists.length; o++){
+                    outputDists[o][i] += outputScale[o]*yNew[i];
+                }
+            }
+            mx = Math.max(mx,Math.abs(yNew[i]-yOld[i]));
         }
         
-        //finalize
-        for (int i=0; i<stateDist.stateDist.length; i++){
-            stateDist.stateDist[i] *= Math.exp(-mxRatet);
+        int b=0;
+        while (candidateBlocks[b]!=from){
+            b++;
         }
+        candidateChange[b] = mx;
+        blockDiscarded[b] = dropped;
         
     }
     
-    private int numbiter(double gammat, double epsilon){
-        //minimal number of iterations in uniformization.
-        //takes the tolerance epsilon, and the product between
-        //the uniformization rate and time.
-      
-        double sigma = 1;
-        double si = 1;
-        int K = 0; 
+    private void ensureActiveSet(int n){
+        //lists of the active states and the target pattern of
+        //the current matrix
         
-        double tol = (1-epsilon)*Math.exp(gammat);
+        if (patternMat!=tranMat){
+            int[][] pattern = tranMat.columnPattern();
+            targetPtr = pattern[0];
+            targets = pattern[1];
+            patternMat = tranMat;
+        }
+        if (active==null || active.length<n){
+            active = new int[n];
+            activeOld = new int[n];
+            candidates = new int[n];
+            visited = new int[n];
+            stamp = 0;
+        }
+        //the candidates are split into equal blocks, which may
+        //be more than the blocks of the rows (those drop the
+        //empty blocks), so the arrays hold one entry per thread
+        int nBlocks = executor.getNumberOfThreads();
+        if (blockDiscarded==null || blockDiscarded.length!=nBlocks){
+            blockDiscarded = new double[nBlocks];
+            candidateChange = new double[nBlocks];
+        }
         
-        while (sigma<tol){           
-            si *= (gammat)/(double)(K+1);
-            sigma += si;
-            K++;
+    }
+    
+    private void uniformizationBatchPass(StateDistribution[] stateDists, double ssTol){
+        
+        //the block is padded with zero vectors, since the
+        //product handles the vectors four at a time
+        int n = S.stateSpaceSize;
+        int nDists = stateDists.length;
+        nVectors = ((nDists+3)/4)*4;
+        if (yOldBlock==null || yOldBlock.length<n*nVectors){
+            yOldBlock = new double[(n*nVectors)];
+            yNewBlock = new double[(n*nVectors)];
+        }
+        java.util.Arrays.fill(yOldBlock,0,n*nVectors,0.0);
+        dists = new double[nDists][];
+        for (int v=0; v<nDists; v++){
+            dists[v] = stateDists[v].stateDist;
         }
+        steadyStateIteration = -1;
+        matVecs = 0;
+        double[] swap;
+        
+        //the term k=0
+        scale = poisson.weight(0);
+        for (int v=0; v<nDists; v++){
+            for (int i=0; i<n; i++){
+                yOldBlock[(i*nVectors+v)] = dists[v][i];
+                dists[v][i] *= scale;
+            }
+        }
+        
+        //iterate
+        for(int k=1; k<=poisson.right; k++){
+            scale = poisson.weight(k);
+            
+            executor.forEachBlock(blocks,batchJumpTask);
+            matVecs += nDists;
+            
+            swap = yOldBlock;
+            yOldBlock = yNewBlock;
+            yNewBlock = swap;
             
-        return(K);
-    }  
+            //the distributions are stationary when the largest
+            //change of any of them is small
+            if (steadyStateDetection && k<poisson.right && stationary(k,blockChange,ssTol)){
+                steadyStateIteration = k;
+                scale = poisson.tailWeight(k+1);
+                for (int v=0; v<nDists; v++){
+                    for (int i=0; i<n; i++){
+                        dists[v][i] += scale*yOldBlock[(i*nVectors+v)];
+                    }
+                }
+                break;
+            }
+            
+        }
+        dists = null;
+        
+    }
+    
+    private void batchJump(int fromRow, int toRow){
+        //one jump of all distributions for a block of rows
+        
+        tranMat.multiply(yOldBlock,yNewBlock,nVectors,fromRow,toRow);
+        if (scale>0){
+            int o;
+            for (int i=fromRow; i<toRow; i++){
+                o = i*nVectors;
+                for (int v=0; v<dists.length; v++){
+                    dists[v][i] += scale*yNewBlock[(o+v)];
+                }
+            }
+        }
+        
+        if (steadyStateDetection){
+            double mx=0;
+            for (int j=fromRow*nVectors; j<toRow*nVectors; j++){
+                mx = Math.max(mx,Math.abs(yNewBlock[j]-yOldBlock[j]));
+            }
+            recordChange(fromRow,mx);
+        }
+        
+    }
+    
+    private void jump(int fromRow, int toRow){
+        //one jump of the embedded chain for a block of rows.
+        //the iterate is accumulated with its Poisson weight
+        
+        if (singlePrecision){
+            jumpSingle(fromRow,toRow);
+            return;
+        }
+        
+        tranMat.multiply(yOld,yNew,fromRow,toRow);
+        if (scale>0){
+            for (int i=fromRow; i<toRow; i++){
+                dist[i] += scale*yNew[i];
+            }
+        }
+        if (outputDists!=null){
+            accumulateOutputs(fromRow,toRow,yNew,null);
+        }
+        
+        if (steadyStateDetection){
+            //the maximum norm is used since, unlike a sum, it does
+            //not depend on how the rows are split between threads
+            double mx=0;
+            for (int i=fromRow; i<toRow; i++){
+                mx = Math.max(mx,Math.abs(yNew[i]-yOld[i]));
+            }
+            recordChange(fromRow,mx);
+        }
+        
+    }
+    
+    private void jumpSingle(int fromRow, int toRow){
+        //as jump with the iterates stored in single precision
+        
+        tranMat.multiply(yOldSingle,yNewSingle,fromRow,toRow);
+        if (scale>0){
+            for (int i=fromRow; i<toRow; i++){
+                dist[i] += scale*yNewSingle[i];
+            }
+        }
+        if (outputDists!=null){
+            accumulateOutputs(fromRow,toRow,null,yNewSingle);
+        }
+        
+        if (steadyStateDetection){
+            double mx=0;
+            for (int i=fromRow; i<toRow; i++){
+                mx = Math.max(mx,Math.abs(yNewSingle[i]-yOldSingle[i]));
+            }
+            recordChange(fromRow,mx);
+        }
+        
+    }
+    
+    private void accumulateOutputs(int fromRow, int toRow, double[] y, float[] ySingle){
+        //adds the iterate to the distributions at the output
+        //times (y is null in single precision)
+        
+        double w;
+        for (int j=0; j<outputDists.length; j++){
+            w = outputScale[j];
+            if (w>0){
+                if (y!=null){
+                    for (int i=fromRow; i<toRow; i++){
+                        outputDists[j][i] += w*y[i];
+                    }
+                }else{
+                    for (int i=fromRow; i<toRow; i++){
+                        outputDists[j][i] += w*ySingle[i];
+                    }
+                }
+            }
+        }
+        
+    }
+    
+    private void recordChange(int fromRow, double mx){
+        //stores the largest change of the block starting at fromRow
+        
+        int b=0;
+        while (blocks[b]!=fromRow){
+            b++;
+        }
+        blockChange[b] = mx;
+        
+    }
+    
+    private boolean stationary(int k, double[] changes, double ssTol){
+        //the iterates converge geometrically, so the distance to
+        //the stationary iterate is estimated from the latest change
+        //(the largest of the blocks) and the rate of convergence
+        //over the latest iterations
+        
+        double change=0;
+        for (int b=0; b<changes.length; b++){
+            change = Math.max(change,changes[b]);
+        }
+        int lag = changeHistory.length;
+        double old = changeHistory[(k%lag)];
+        changeHistory[(k%lag)] = change;
+        
+        if (k<=lag || change==0){
+            return(change==0);
+        }
+        double rate = Math.pow(change/old,1.0/lag);
+        if (rate>=1.0){
+            return(false);
+        }
+        
+        return(change*rate/(1.0-rate)<ssTol);
+    }
+    
+    private void ensureWorkspace(int n){
+        //the buffers are only reallocated when the state
+        //space grows beyond their current length
+        
+        if (singlePrecision){
+            if (yOldSingle==null || yOldSingle.length<n){
+                yOldSingle = new float[n];
+                yNewSingle = new float[n];
+            }
+            yOld = null; //release the double buffers
+            yNew = null;
+        }else if (yOld==null || yOld.length<n){
+            yOld = new double[n];
+            yNew = new double[n];
+        }
+        
+    }
+    
     
     
     
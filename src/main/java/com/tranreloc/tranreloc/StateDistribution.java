@@ -82,58 +82,23 @@ public class StateDistribution {
         
         if (idx<newS.assets.length){
             
-            double[] newStateDist = new double[newS.stateSpaceSize];
-            double[] excessProb = new double[S.assets.length];
-            double[][] margDist = getMarginalStateDists();
-        
-            for (int assetIdx=0; assetIdx<newS.assets.length; assetIdx++){
-                if (S.assets[assetIdx].capacity>newS.assets[assetIdx].capacity){ 
-                    for (int i=(newS.assets[assetIdx].capacity+1); i<margDist[assetIdx].length; i++){
-                        excessProb[assetIdx] += margDist[assetIdx][i];
-                    }
-                }
-            }
-        
-            double[][] newMargDist = new double[newS.assets.length][];
-            double[][] szl = new double[newS.assets.length][];
-            
-            for (int assetIdx=0; assetIdx<newS.assets.length; assetIdx++){
-                newMargDist[assetIdx] = new double[(newS.assets[assetIdx].capacity+1)];
-            
-                for (int i=0; i<(int)Math.min(newMargDist[assetIdx].length,margDist[assetIdx].length); i++){
-                    newMargDist[assetIdx][i]=margDist[assetIdx][i];
-                }
-                newMargDist[assetIdx][(int)(Math.min(newMargDist[assetIdx].length,
-                        margDist[assetIdx].length)-1)] += excessProb[assetIdx];
-            
-                szl[assetIdx] = new double[newMargDist[assetIdx].length];
-            
-                for (int i=0; i<newMargDist[assetIdx].length; i++){
-                    szl[assetIdx][i] = 1.0/newS.assets[assetIdx].sizeOnLevel(i);
-                }
-            
-            }
+            double[][] levelProb = levelProbabilities(S,newS,getMarginalStateDists());
             
             double prob;
+            stateDist = new double[newS.stateSpaceSize];
             newS.resetState();
         
             for (int sidx=0; sidx<newS.stateSpaceSize; sidx++){
         
                 prob=1.0;
                 for (int assetIdx=0; assetIdx<newS.assets.length; assetIdx++){
-                    prob *= newMargDist[assetIdx][newS.assets[assetIdx].Kuse]*
-                            szl[assetIdx][newS.assets[assetIdx].Kuse];
+                    prob *= levelProb[assetIdx][newS.assets[assetIdx].Kuse];
                 }
-                newStateDist[sidx]=prob;
+                stateDist[sidx]=prob;
             
             newS.nextState();
             }
             
-            stateDist = new double[newStateDist.length];
-            for (int sidx=0; sidx<newS.stateSpaceSize; sidx++){
-                stateDist[sidx]=newStateDist[sidx];
-            }
-            
         }
         
         //store the new state space and
@@ -142,6 +107,40 @@ public class StateDistribution {
         
     }
     
+    static double[][] levelProbabilities(StateSpace S, StateSpace newS, double[][] margDist){
+        //probability of each state of newS on each level of
+        //occupation of an asset, when the marginal distributions
+        //of S are kept (the mass above a lower capacity is moved
+        //to the capacity) and the states on a level are equally
+        //likely
+        
+        double[] excessProb = new double[S.assets.length];
+        for (int assetIdx=0; assetIdx<newS.assets.length; assetIdx++){
+            if (S.assets[assetIdx].capacity>newS.assets[assetIdx].capacity){ 
+                for (int i=(newS.assets[assetIdx].capacity+1); i<margDist[assetIdx].length; i++){
+                    excessProb[assetIdx] += margDist[assetIdx][i];
+                }
+            }
+        }
+        
+        double[][] newMargDist = new double[newS.assets.length][];
+        for (int assetIdx=0; assetIdx<newS.assets.length; assetIdx++){
+            newMargDist[assetIdx] = new double[(newS.assets[assetIdx].capacity+1)];
+            
+            for (int i=0; i<(int)Math.min(newMargDist[assetIdx].length,margDist[assetIdx].length); i++){
+                newMargDist[assetIdx][i]=margDist[assetIdx][i];
+            }
+            newMargDist[assetIdx][(int)(Math.min(newMargDist[assetIdx].length,
+                    margDist[assetIdx].length)-1)] += excessProb[assetIdx];
+            
+            for (int i=0; i<newMargDist[assetIdx].length; i++){
+                newMargDist[assetIdx][i] *= 1.0/newS.assets[assetIdx].sizeOnLevel(i);
+            }
+        }
+        
+        return(newMargDist);
+    }
+    
     public void newStateSpace_Accurate(StateSpace newS){ 
         
         double[] newStateDist = new double[newS.stateSpaceSize];
@@ -277,55 +276,60 @@ public class StateDistribution {
         
         stateDist = new double[S.stateSpaceSize];
         
+        S.resetState();
+        for (int sidx=0; sidx<S.stateSpaceSize; sidx++){
+            stateDist[sidx]=occupiedProbability(S,occupied);
+            S.nextState();
+        }
+        
+    }
+    
+    static double occupiedProbability(StateSpace S, int[] occupied){
+        //probability of the current state of S when the
+        //occupation is given by the array occupied (zero if
+        //the state does not have this occupation)
+        
         boolean target;
         int idx;
         double prob;
-        S.resetState();
-        for (int sidx=0; sidx<S.stateSpaceSize; sidx++){
             
-            //check if state is valid
-            target=true;
-            for (int assetIdx=0; assetIdx<S.assets.length; assetIdx++){
-                for (int didx=0; didx<S.assets[assetIdx].phDists.length; didx++){
-                    if ( (didx==0 && S.assets[assetIdx].currentState_CapDist(didx)!=occupied[assetIdx]) ||
-                            (didx>0 && S.assets[assetIdx].currentState_CapDist(didx)>0) ){
-                        target=false;
-                    }
+        //check if state is valid
+        target=true;
+        for (int assetIdx=0; assetIdx<S.assets.length; assetIdx++){
+            for (int didx=0; didx<S.assets[assetIdx].phDists.length; didx++){
+                if ( (didx==0 && S.assets[assetIdx].currentState_CapDist(didx)!=occupied[assetIdx]) ||
+                        (didx>0 && S.assets[assetIdx].currentState_CapDist(didx)>0) ){
+                    target=false;
                 }
-                
             }
-            if (target){
-                target=true;
-                for (int assetIdx=0; assetIdx<S.assets.length; assetIdx++){
-                    for (int phidx=0; phidx<S.assets[assetIdx].nPhases[0]; phidx++){
-                        if (S.assets[assetIdx].currentState_PhaseType(0)[phidx]!=occupied[assetIdx] &&
-                                S.assets[assetIdx].currentState_PhaseType(0)[phidx]>0){
-                            target=false;
-                        }
-                    }
+            
+        }
+        if (!target){
+            return(0.0);
+        }
+        for (int assetIdx=0; assetIdx<S.assets.length; assetIdx++){
+            for (int phidx=0; phidx<S.assets[assetIdx].nPhases[0]; phidx++){
+                if (S.assets[assetIdx].currentState_PhaseType(0)[phidx]!=occupied[assetIdx] &&
+                        S.assets[assetIdx].currentState_PhaseType(0)[phidx]>0){
+                    return(0.0);
                 }
-                
-                //calculate probability
-                if (target){
-                    prob=1.0;
-                    for (int assetIdx=0; assetIdx<S.assets.length; assetIdx++){
-                        if (occupied[assetIdx]>0){
-                            idx=0;
-                            while (idx<S.assets[assetIdx].nPhases[assetIdx] && 
-                                    S.assets[assetIdx].currentState_PhaseType(0)[idx]!=occupied[assetIdx]){
-                               idx++; 
-                            }
-                            prob *= S.assets[assetIdx].phDists[0].initialDistribution[idx];
-                        }
-                    }
-                    stateDist[sidx]=prob;
+            }
+        }
+        
+        //calculate probability
+        prob=1.0;
+        for (int assetIdx=0; assetIdx<S.assets.length; assetIdx++){
+            if (occupied[assetIdx]>0){
+                idx=0;
+                while (idx<S.assets[assetIdx].nPhases[assetIdx] && 
+                        S.assets[assetIdx].currentState_PhaseType(0)[idx]!=occupied[assetIdx]){
+                   idx++; 
                 }
-            
+                prob *= S.assets[assetIdx].phDists[0].initialDistribution[idx];
             }
-            
-            S.nextState();
         }
         
+        return(prob);
     }
     
     public void normalizeDist(){
@@ -400,20 +404,24 @@ public class StateDistribution {
         return(margDist);
     }
     
-    private int multinomialCoefficient(int[] x){
-        //returns the multinomial coefficient
+    private double multinomialCoefficient(int[] x){
+        //returns the multinomial coefficient, built as a
+        //product of binomial coefficients such that no
+        //factorial is formed (only ratios of these are used)
         
-        int y1=1,y2=0;
+        double y=1;
+        int sm=0;
         for (int i=0; i<x.length; i++){
-            y1*=gamma((x[i]+1));
-            y2+=x[i];
+            for (int j=1; j<=x[i]; j++){
+                sm++;
+                y = y*sm/j;
+            }
         }
-        y2++;
         
-        return((gamma(y2)/y1));
+        return(y);
     }
     
-    private int totalSequences(int[] x, int[] bound){
+    private double totalSequences(int[] x, int[] bound){
         
         //Problem: Visits the same solution multiple
         //times when the remaining use is distributed
@@ -432,7 +440,7 @@ public class StateDistribution {
             use+=xTemp[i];
         }
         
-        int totSeq=0;
+        double totSeq=0;
         int j,d=0;
         
         do{
@@ -473,9 +481,9 @@ public class StateDistribution {
         //x given that items a picked with equal
         //probability and with an upper bound.
         
-        int totalSeq = totalSequences(x,bound);
+        double totalSeq = totalSequences(x,bound);
         
-        return(((double)multinomialCoefficient(x)/(double)totalSeq));
+        return((multinomialCoefficient(x)/totalSeq));
     }
     
     
@@ -490,21 +498,6 @@ public class StateDistribution {
     
     
     
-    private int factorial(int n){
-        //From The flying keyboard
-        // 2018 TheFlyingKeyboard and released under MIT License
-        // theflyingkeyboard.net
-        
-        int fact = 1;
-        for(int i = 2; i <= n; i++){
-            fact *= i;
-        }
-        return fact;
-    }
-    
-    private int gamma(int n){
-        return(factorial(n-1));
-    }
     
 
         
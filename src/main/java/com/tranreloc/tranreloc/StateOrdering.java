@@ -0,0 +1,185 @@
+/*
+ * Copyright 2022 Anders Reenberg Andersen.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.tranreloc.tranreloc;
+
+import java.util.Arrays;
+
+/**
+ *
+ * @author Anders Reenberg Andersen
+ */
+
+//Class for renumbering the states by reverse Cuthill-McKee
+//(Cuthill and McKee, 1969; George, 1971). In the order of
+//StateSpace.nextState, a jump of asset i moves reps[i] states,
+//so the elements of a row are spread over the entire vector.
+//Cuthill-McKee numbers the states in breadth-first order from a
+//state of low degree, with the neighbours of each state in
+//order of increasing degree, which keeps the states of a row
+//close together and reduces the bandwidth of the matrix. The
+//matrix is permuted by TransitionRateMatrix.permute, and the
+//distributions are moved to the new order before the solver
+//and back to the order of the state space afterwards.
+
+public class StateOrdering {
+
+    int[] order; //original state at each position
+    int[] position; //position of each original state
+    int bandwidth,originalBandwidth;
+
+    public StateOrdering(TransitionRateMatrix tranMat){
+
+        System.out.print("Reordering states (reverse Cuthill-McKee)...");
+
+        int n = tranMat.S.stateSpaceSize;
+        int[] rowPtr = tranMat.rowPtr;
+        int[] col = tranMat.columnIndices;
+        int nnz = tranMat.numberOfNonZeros();
+
+        //neighbours of each state in the symmetrized pattern
+        //(the targets and the sources of its transitions)
+        int[] adjPtr = new int[(n+1)];
+        for (int i=0; i<n; i++){
+            adjPtr[(i+1)] += rowPtr[(i+1)]-rowPtr[i];
+            for (int k=rowPtr[i]; k<rowPtr[(i+1)]; k++){
+                adjPtr[(col[k]+1)]++;
+            }
+        }
+        for (int i=0; i<n; i++){
+            adjPtr[(i+1)] += adjPtr[i];
+        }
+        int[] adj = new int[Math.multiplyExact(2,nnz)];
+        int[] next = Arrays.copyOf(adjPtr,n);
+        for (int i=0; i<n; i++){
+            for (int k=rowPtr[i]; k<rowPtr[(i+1)]; k++){
+                adj[next[i]] = col[k];
+                next[i]++;
+                adj[next[col[k]]] = i;
+                next[col[k]]++;
+            }
+        }
+        next = null;
+
+        cuthillMcKee(n,adjPtr,adj);
+
+        //reverse the order
+        int swap;
+        for (int i=0; i<n/2; i++){
+            swap = order[i];
+            order[i] = order[(n-1-i)];
+            order[(n-1-i)] = swap;
+        }
+        position = new int[n];
+        for (int i=0; i<n; i++){
+            position[order[i]] = i;
+        }
+
+        bandwidth=0;
+        originalBandwidth=0;
+        for (int i=0; i<n; i++){
+            for (int k=rowPtr[i]; k<rowPtr[(i+1)]; k++){
+                originalBandwidth = Math.max(originalBandwidth,Math.abs(i-col[k]));
+                bandwidth = Math.max(bandwidth,Math.abs(position[i]-position[col[k]]));
+            }
+        }
+
+        System.out.println(" done. Bandwidth: " + originalBandwidth + " -> " + bandwidth + ".");
+
+    }
+
+    private void cuthillMcKee(int n, int[] adjPtr, int[] adj){
+        //breadth-first numbering. each component starts from
+        //its first unnumbered state of least degree found
+
+        order = new int[n];
+        boolean[] numbered = new boolean[n];
+        int head=0,tail=0,start,first,j,v;
+
+        //the first component starts from a state of least degree
+        start=0;
+        for (int i=1; i<n; i++){
+            if (degree(adjPtr,i)<degree(adjPtr,start)){
+                start=i;
+            }
+        }
+
+        int scan=0;
+        while (tail<n){
+            if (head==tail){
+                //next component
+                if (tail>0){
+                    while (numbered[scan]){
+                        scan++;
+                    }
+                    start=scan;
+                }
+                order[tail] = start;
+                numbered[start] = true;
+                tail++;
+            }
+
+            v = order[head];
+            head++;
+            first = tail;
+            for (int k=adjPtr[v]; k<adjPtr[(v+1)]; k++){
+                if (!numbered[adj[k]]){
+                    numbered[adj[k]] = true;
+                    order[tail] = adj[k];
+                    tail++;
+                }
+            }
+
+            //the new states in order of increasing degree
+            //(insertion sort, as there are only a few)
+            for (int i=(first+1); i<tail; i++){
+                v = order[i];
+                j = i-1;
+                while (j>=first && degree(adjPtr,order[j])>degree(adjPtr,v)){
+                    order[(j+1)] = order[j];
+                    j--;
+                }
+                order[(j+1)] = v;
+            }
+        }
+
+    }
+
+    private int degree(int[] adjPtr, int i){
+        return(adjPtr[(i+1)]-adjPtr[i]);
+    }
+
+    public double[] toOrdered(double[] x){
+        //the vector of the state space in the new order
+
+        double[] y = new double[x.length];
+        for (int i=0; i<order.length; i++){
+            y[i] = x[order[i]];
+        }
+        return(y);
+    }
+
+    public double[] toOriginal(double[] x){
+        //the vector in the new order in the order of the state space
+
+        double[] y = new double[x.length];
+        for (int i=0; i<order.length; i++){
+            y[order[i]] = x[i];
+        }
+        return(y);
+    }
+
+}
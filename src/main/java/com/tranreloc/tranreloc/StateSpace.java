@@ -21,11 +21,18 @@ package com.tranreloc.tranreloc;
  */
 public class StateSpace {
     
+    //largest number of states or matrix elements held in a
+    //single array (the JVM reserves a few elements of the
+    //largest arrays). larger models are stored in chunks
+    //(ChunkedArray) and indexed by long.
+    static final int MAX_STATES = Integer.MAX_VALUE-8;
+    
     Asset[] assets;
     
-    int stateIdx;
-    int stateSpaceSize;
-    int[] reps;
+    long stateIdx;
+    long size; //number of states
+    int stateSpaceSize; //number of states when they fit in an array (-1 otherwise)
+    long[] reps;
     CustomerRelocationMap relMap;
     int ctjumps; //current total number of jumps
     
@@ -41,8 +48,24 @@ public class StateSpace {
         
     }
     
+    StateSpace(StateSpace S){
+        //a second state space of the same assets with its own
+        //current state (for generating rows in parallel)
+        
+        assets = new Asset[S.assets.length];
+        for (int i=0; i<assets.length; i++){
+            assets[i] = new Asset(S.assets[i].capacity,S.assets[i].phDists,S.assets[i].arrivalRate);
+        }
+        relMap = S.relMap;
+        size = S.size;
+        stateSpaceSize = S.stateSpaceSize;
+        reps = S.reps;
+        resetState();
+        
+    }
+    
     private void calculateReps(){
-        reps = new int[assets.length];
+        reps = new long[assets.length];
         reps[(assets.length-1)]=1;
         
         if (assets.length>1){
@@ -53,7 +76,7 @@ public class StateSpace {
         
     }
     
-    public int newState_CapChange(int assetIdx, int didx, int ph, String dir){
+    public long newState_CapChange(int assetIdx, int didx, int ph, String dir){
         //returns the new state (i.e. the column index) associated with
         //a capacity change of 1.
         
@@ -66,7 +89,7 @@ public class StateSpace {
     }
     
 
-    public int newState_PhaseChange(int assetIdx, int didx, int phFrom, int phTo){
+    public long newState_PhaseChange(int assetIdx, int didx, int phFrom, int phTo){
         //returns the new state (i.e. the column index) associated with
         //a local phase change for a distribution in one of the assets
         
@@ -84,7 +107,7 @@ public class StateSpace {
             
     public void nextState(){
         
-        if (stateIdx<(stateSpaceSize-1)){
+        if (stateIdx<(size-1)){
             stateIdx++;
         }else{
             stateIdx=0;
@@ -148,6 +171,17 @@ public class StateSpace {
         ctjumps=-1;
     }
     
+    public void setState(long sidx){
+        //moves to state sidx directly. the index of asset i is
+        //the digit of sidx with weight reps[i].
+        
+        stateIdx=sidx;
+        for (int i=0; i<assets.length; i++){
+            assets[i].setState((sidx/reps[i])%assets[i].assetStateSpaceSize);
+        }
+        ctjumps=-1;
+    }
+    
     public void printState(){
         for (int assetIdx=0; assetIdx<assets.length; assetIdx++){
                 System.out.print(" Ast: " + (assetIdx+1) + " | ");
@@ -168,11 +202,62 @@ public class StateSpace {
     }
     
     private void calculateStateSpace(){
-        stateSpaceSize=1;
+        //the product is formed exactly, such that a model beyond
+        //a long is rejected (ArithmeticException) instead of
+        //wrapping around
+        
+        size=1;
+        for (int i=0; i<assets.length; i++){
+            size = Math.multiplyExact(size,assets[i].assetStateSpaceSize);
+        }
+        System.out.println("State space size: " + size);
+        stateSpaceSize = (size<=MAX_STATES) ? (int) size : -1;
+    }
+    
+    public boolean fitsInArrays(){
+        //whether the vectors and the matrix of the state space
+        //fit in arrays. the matrix elements are only counted
+        //when the largest possible rows could exceed an array.
+        
+        if (size>MAX_STATES){
+            return(false);
+        }
+        if (size*maxJumps()<=MAX_STATES){
+            return(true);
+        }
+        return(totalJumps()<=MAX_STATES);
+    }
+    
+    private long maxJumps(){
+        //bound on the jumps out of any state: the discharges and
+        //local transitions of every phase, and the arrivals and
+        //relocations into every phase of every asset
+        
+        long bound=0,phases;
         for (int i=0; i<assets.length; i++){
-            stateSpaceSize *= assets[i].assetStateSpaceSize;
+            phases=0;
+            for (int j=0; j<assets[i].nPhases.length; j++){
+                bound += (long)assets[i].nPhases[j]*assets[i].nPhases[j];
+                phases += assets[i].nPhases[j];
+            }
+            bound += (long)assets.length*phases;
+        }
+        return(bound);
+    }
+    
+    public long totalJumps(){
+        //jumps out of all states (an upper bound of the matrix
+        //elements, as jumps to the same state are merged)
+        
+        long total=0;
+        resetState();
+        for (long sidx=0; sidx<size; sidx++){
+            currentTotalJumps();
+            total += ctjumps;
+            nextState();
         }
-        System.out.println("State space size: " + stateSpaceSize);
+        resetState();
+        return(total);
     }
     
     
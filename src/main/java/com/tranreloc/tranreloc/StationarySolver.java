@@ -0,0 +1,328 @@
+/*
+ * Copyright 2022 Anders Reenberg Andersen.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.tranreloc.tranreloc;
+
+/**
+ *
+ * @author Anders Reenberg Andersen
+ */
+
+//Class for solving the stationary distribution, pi*Q = 0,
+//associated with the given transition rate matrix. The
+//iterations run directly on the transposed generator, where
+//row i holds the transitions into state i.
+
+public class StationarySolver implements TransientSolver {
+
+    StateSpace S;
+    TransitionRateMatrix tranMat;
+
+    String method; //"gauss-seidel", "sor" or "iad"
+    double omega; //relaxation parameter used by SOR
+    int maxIterations;
+
+    //aggregation used by IAD. the aggregated chain is solved by
+    //dense elimination in each iteration (m^3/3 operations), so
+    //the number of aggregates is kept well below the states.
+    static final int MAX_AGGREGATES = 200;
+    int[] aggregate; //aggregate of each state
+    int nAggregates;
+    double[][] C; //coupling matrix between the aggregates
+    double[][] A; //augmented system of the elimination
+    double[] xi,xiNew; //aggregated distribution before and after
+
+    double[] previous; //workspace holding the previous iterate
+    int iterations; //iterations in the latest solve
+    double solveTime; //seconds used by the latest solve
+
+    public StationarySolver(){
+
+        method = "gauss-seidel";
+        omega = 1.2;
+        maxIterations = 100000;
+
+    }
+
+    public StationarySolver(StateSpace S, TransitionRateMatrix tranMat){
+
+        this();
+        setTransitionRateMatrix(S,tranMat);
+
+    }
+
+    public void setTransitionRateMatrix(StateSpace S, TransitionRateMatrix tranMat){
+
+        this.S = S;
+        this.tranMat = tranMat;
+        aggregate = null;
+
+    }
+
+    public void setMethod(String method){
+        //"gauss-seidel", "sor" or "iad"
+
+        this.method = method;
+
+    }
+
+    public void setRelaxation(double omega){
+        //relaxation parameter of SOR (0<omega<2)
+
+        this.omega = omega;
+
+    }
+
+    public void setParallelExecutor(ParallelExecutor executor){
+        //the sweeps update the distribution in place and
+        //run on the calling thread
+    }
+
+    public int getMatrixVectorProducts(){
+        //a sweep touches each element once. an IAD iteration
+        //also builds the coupling matrix.
+        return(method.equals("iad") ? 2*iterations : iterations);
+    }
+
+    public double getSolveTime(){
+        return(solveTime);
+    }
+
+    public void solve(StateDistribution stateDist, double t, double epsilon){
+        //replaces the state distribution by the stationary
+        //distribution. the current distribution is used as
+        //the initial guess, and the time is ignored.
+
+        long startTime = System.currentTimeMillis();
+        if (!tranMat.transposed){
+            tranMat.transposeTransitionMatrix();
+        }
+
+        int n = S.stateSpaceSize;
+        if (previous==null || previous.length<n){
+            previous = new double[n];
+        }
+        double[] pi = stateDist.stateDist;
+        initialGuess(pi,n);
+
+        System.out.print("Solving stationary distribution (" + method + ")...");
+
+        double change;
+        iterations = 0;
+        do{
+            System.arraycopy(pi,0,previous,0,n);
+            if (method.equals("iad")){
+                aggregationStep(pi,n);
+                sweep(pi,n,1.0);
+            }else if (method.equals("sor")){
+                sweep(pi,n,omega);
+            }else{
+                sweep(pi,n,1.0);
+            }
+            normalize(pi,n);
+            iterations++;
+
+            change=0;
+            for (int i=0; i<n; i++){
+                change += Math.abs(pi[i]-previous[i]);
+            }
+        }while (change>epsilon && iterations<maxIterations);
+
+        if (change>epsilon){
+            System.out.println(" Warning: no convergence after " + iterations + " iterations.");
+        }else{
+            System.out.println(" done (" + iterations + " iterations).");
+        }
+        solveTime = (double) (System.currentTimeMillis()-startTime)/1000.0;
+
+    }
+
+    private void initialGuess(double[] pi, int n){
+        //the current distribution is used if it is positive in
+        //all states. otherwise it is mixed with the uniform
+        //distribution, since states with zero probability would
+        //leave aggregates undefined.
+
+        boolean positive = true;
+        for (int i=0; i<n; i++){
+            if (!(pi[i]>0)){
+                positive = false;
+            }
+        }
+        if (!positive){
+            for (int i=0; i<n; i++){
+                pi[i] = 0.5*pi[i]+0.5/(double)n;
+            }
+        }
+        normalize(pi,n);
+
+    }
+
+    private void sweep(double[] pi, int n, double w){
+        //one (over-relaxed) Gauss-Seidel sweep over pi*Q = 0
+
+        double sm,scale = tranMat.generatorScale();
+        for (int i=0; i<n; i++){
+            sm=0;
+            for (int k=tranMat.rowPtr[i]; k<tranMat.rowPtr[(i+1)]; k++){
+                sm += pi[tranMat.columnIndex(k)]*tranMat.rate(k);
+            }
+            sm = -sm*scale/tranMat.generatorDiagonal(i);
+            pi[i] = (1.0-w)*pi[i]+w*sm;
+        }
+
+    }
+
+    private void aggregationStep(double[] pi, int n){
+        //iterative aggregation-disaggregation (Koury, McAllister
+        //and Stewart): solve the aggregated chain exactly and
+        //rescale the states within each aggregate accordingly
+
+        if (aggregate==null){
+            defineAggregates();
+        }
+
+        java.util.Arrays.fill(xi,0.0);
+        for (int i=0; i<n; i++){
+            xi[aggregate[i]] += pi[i];
+        }
+
+        //coupling matrix between the aggregates
+        for (int I=0; I<nAggregates; I++){
+            java.util.Arrays.fill(C[I],0.0);
+        }
+        double scale = tranMat.generatorScale();
+        int a;
+        for (int i=0; i<n; i++){
+            a = aggregate[i];
+            for (int k=tranMat.rowPtr[i]; k<tranMat.rowPtr[(i+1)]; k++){
+                C[aggregate[tranMat.columnIndex(k)]][a] += pi[tranMat.columnIndex(k)]*tranMat.rate(k)*scale;
+            }
+            C[a][a] += pi[i]*tranMat.generatorDiagonal(i);
+        }
+        for (int I=0; I<nAggregates; I++){
+            if (xi[I]>0){
+                for (int J=0; J<nAggregates; J++){
+                    C[I][J] /= xi[I];
+                }
+            }
+        }
+
+        if (!solveAggregated()){
+            return; //the aggregated chain is singular; keep pi
+        }
+        for (int i=0; i<n; i++){
+            if (xi[aggregate[i]]>0){
+                pi[i] *= xiNew[aggregate[i]]/xi[aggregate[i]];
+            }
+        }
+
+    }
+
+    private boolean solveAggregated(){
+        //solves xiNew*C = 0 with sum(xiNew) = 1 by Gaussian
+        //elimination on C^T, where the last equation is replaced
+        //by the normalization. returns false if C is singular.
+
+        int m = nAggregates;
+        for (int i=0; i<m; i++){
+            for (int j=0; j<m; j++){
+                A[i][j] = C[j][i];
+            }
+            A[i][m] = 0.0;
+        }
+        for (int j=0; j<m; j++){
+            A[(m-1)][j] = 1.0;
+        }
+        A[(m-1)][m] = 1.0;
+
+        int piv;
+        double[] tmp;
+        double f;
+        for (int k=0; k<m; k++){
+            piv = k;
+            for (int i=(k+1); i<m; i++){
+                if (Math.abs(A[i][k])>Math.abs(A[piv][k])){
+                    piv = i;
+                }
+            }
+            if (A[piv][k]==0){
+                return(false);
+            }
+            tmp = A[k]; A[k] = A[piv]; A[piv] = tmp;
+            for (int i=(k+1); i<m; i++){
+                f = A[i][k]/A[k][k];
+                if (f!=0){
+                    for (int j=k; j<=m; j++){
+                        A[i][j] -= f*A[k][j];
+                    }
+                }
+            }
+        }
+        for (int k=(m-1); k>=0; k--){
+            f = A[k][m];
+            for (int j=(k+1); j<m; j++){
+                f -= A[k][j]*xiNew[j];
+            }
+            xiNew[k] = Math.max(0.0,f/A[k][k]);
+        }
+
+        return(true);
+    }
+
+    private void defineAggregates(){
+        //states are aggregated by the occupied capacity of
+        //the assets. the leading assets are included as long
+        //as the number of aggregates stays small. the arrays of
+        //the aggregated chain are allocated here once.
+
+        int nUsed=0;
+        nAggregates=1;
+        while (nUsed<S.assets.length &&
+                nAggregates*(S.assets[nUsed].capacity+1)<=MAX_AGGREGATES){
+            nAggregates *= S.assets[nUsed].capacity+1;
+            nUsed++;
+        }
+        C = new double[nAggregates][nAggregates];
+        A = new double[nAggregates][(nAggregates+1)];
+        xi = new double[nAggregates];
+        xiNew = new double[nAggregates];
+
+        aggregate = new int[S.stateSpaceSize];
+        int a;
+        S.resetState();
+        for (int sidx=0; sidx<S.stateSpaceSize; sidx++){
+            a=0;
+            for (int assetIdx=0; assetIdx<nUsed; assetIdx++){
+                a = a*(S.assets[assetIdx].capacity+1)+S.assets[assetIdx].Kuse;
+            }
+            aggregate[sidx] = a;
+            S.nextState();
+        }
+
+    }
+
+    private void normalize(double[] pi, int n){
+        double sm=0;
+        for (int i=0; i<n; i++){
+            sm += pi[i];
+        }
+        for (int i=0; i<n; i++){
+            pi[i] /= sm;
+        }
+    }
+
+}
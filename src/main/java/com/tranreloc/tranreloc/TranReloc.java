@@ -33,6 +33,16 @@ public class TranReloc {
         String resDir = getResultsDirectory(args); //directory for results
         String outType = getOutputType(args); //type of results
         String serLevel = getServiceLevel(args); //get the service level for the optimization procedure
+        String threads = getNumberOfThreads(args); //number of threads used by the solver
+        String layout = getMatrixLayout(args); //layout of the matrix ("csr", "free" or "kronecker" to not store it, or "disk" to store it in a file)
+        String precision = getPrecision(args); //"single", or "check" to also report the deviation from double precision
+        String grid = getOutputTimes(args); //comma-separated times within each segment where the distribution is also reported
+        String budget = getErrorBudget(args); //total tolerance over all segments
+        String drop = getTruncationThreshold(args); //probability below which states are dropped
+        String storage = getStorageDirectory(args); //directory of the memory-mapped matrix
+        String workers = getWorkers(args); //number of worker processes, or "number:port" to wait for workers started elsewhere
+        String numbering = getStateNumbering(args); //"rcm" to solve with the states in reverse Cuthill-McKee order
+        String method = getSolverMethod(args); //method for each segment ("auto", "uniformization", "krylov", "ode", "gauss-seidel", "sor" or "iad")
         if (task.equals("none")){
             task = "evaluate"; //default task
         }
@@ -49,6 +59,21 @@ public class TranReloc {
         }else{
             serviceLevel = Double.parseDouble(serLevel);
         }
+        //number of threads
+        int nThreads;
+        if (threads.equals("none")){
+            nThreads = 1; //default number of threads
+        }else{
+            nThreads = Integer.parseInt(threads);
+        }
+        
+        //combinations of options that cannot be solved
+        String conflict = unsupportedOptions(method,layout,precision,workers);
+        if (conflict!=null){
+            System.out.println("Warning. " + conflict + "\n"
+                    + "Terminating program.");
+            return;
+        }
         
         //-----------------------
         //read parameters
@@ -59,20 +84,80 @@ public class TranReloc {
         
         EvaluateSystem eval = new EvaluateSystem(readParam.nAssets,readRelocMap.getRelocationMap(),
             readParam.arrivalRates,readParam.capacity,readParam.phDists);
+        eval.setNumberOfThreads(nThreads);
+        if (!method.equals("none")){
+            eval.setSolverMethod(method);
+        }
+        if (!layout.equals("none")){
+            eval.setMatrixLayout(layout);
+        }
+        if (readParam.durations!=null){
+            eval.setSegmentDurations(readParam.durations);
+        }
+        if (!budget.equals("none")){
+            eval.setErrorBudget(Double.parseDouble(budget));
+        }
+        if (!drop.equals("none")){
+            eval.setTruncationThreshold(Double.parseDouble(drop));
+        }
+        if (!storage.equals("none")){
+            eval.setStorageDirectory(storage);
+        }
+        if (numbering.equals("rcm")){
+            eval.setStateReordering(true);
+        }
+        WorkerPool pool = null;
+        if (!workers.equals("none")){
+            String[] w = workers.split(":");
+            if (w.length==1){
+                pool = WorkerPool.startLocal(Integer.parseInt(w[0]),paramDir);
+            }else{
+                pool = WorkerPool.await(Integer.parseInt(w[0]),Integer.parseInt(w[1]));
+            }
+            eval.setWorkers(pool);
+        }
+        if (!grid.equals("none")){
+            String[] times = grid.split(",");
+            double[] outputTimes = new double[times.length];
+            for (int j=0; j<times.length; j++){
+                outputTimes[j] = Double.parseDouble(times[j]);
+            }
+            eval.setOutputTimes(outputTimes);
+        }
+        if (precision.equals("single") || precision.equals("check")){
+            eval.setSinglePrecision(true,precision.equals("check"));
+        }
         
         //-----------------------
         //run analysis
         //-----------------------
         if (task.equals("evaluate")){
         
-            //evaluate the system
-            eval.evaluateSequence(readParam.occupied);
-        
-            //write results to file
-            if (outType.equals("measures")){
-                eval.writeResultsToFile(resDir);
-            }else if(outType.equals("distributions")){
-                eval.writeMarginalDistsToFile(resDir);
+            if (readParam.scenarios.length>1){
+                
+                //evaluate each row of CurrentlyOccupied as a
+                //scenario and write one file per scenario
+                AggregatedResults[] scenarioRes = eval.evaluateScenarios(readParam.scenarios);
+                for (int r=0; r<scenarioRes.length; r++){
+                    if (outType.equals("measures")){
+                        scenarioRes[r].writeResultsToFile(scenarioFileName(resDir,r));
+                    }else if(outType.equals("distributions")){
+                        scenarioRes[r].writeMarginalDistsToFile(scenarioFileName(resDir,r));
+                    }
+                }
+                
+            }else{
+            
+                //evaluate the system
+                eval.evaluateSequence(readParam.occupied);
+            
+                //write results to file
+                if (outType.equals("measures")){
+                    eval.writeResultsToFile(resDir);
+                }else if(outType.equals("distributions")){
+                    eval.writeMarginalDistsToFile(resDir);
+                }
+                
             }
     
         }else if(task.equals("optimize")){
@@ -91,10 +176,44 @@ public class TranReloc {
             System.out.println("Warning. Unknown task: " + task + "\n"
                     + "Terminating program.");
         }      
+        if (pool!=null){
+            pool.shutdown();
+        }
         
         
     }
     
+    public static String unsupportedOptions(String method, String layout,
+            String precision, String workers){
+        //returns a description of the first combination of options
+        //that no solver supports (null if there is none)
+        
+        boolean single = precision.equals("single") || precision.equals("check");
+        if (!workers.equals("none")){
+            if (!method.equals("none") && !method.equals("auto") && !method.equals("uniformization")){
+                return("The worker processes (-w) only solve by uniformization, not by " + method + ".");
+            }
+            if (single){
+                return("The worker processes (-w) only solve in double precision.");
+            }
+        }
+        if (single && (layout.equals("free") || layout.equals("kronecker") || layout.equals("disk"))){
+            return("The " + layout + " layout (-l) is only available in double precision (without -f).");
+        }
+        
+        return(null);
+    }
+    
+    public static String scenarioFileName(String resDir, int scenario){
+        //inserts the scenario number before the file extension
+        
+        int idx = resDir.lastIndexOf('.');
+        if (idx<=resDir.lastIndexOf('/')){
+            return(resDir + "_scenario" + scenario);
+        }
+        return(resDir.substring(0,idx) + "_scenario" + scenario + resDir.substring(idx));
+    }
+    
     public static String getTask(String[] inputArgs){
         
         int idx=0;
@@ -142,6 +261,150 @@ public class TranReloc {
         
     }
 
+    public static String getSolverMethod(String[] inputArgs){
+        
+        int idx=0;
+        while (idx<inputArgs.length && !inputArgs[idx].equals("-m")){
+            idx++;
+        }
+        if (idx==inputArgs.length){
+            return("none");
+        }else{
+            return(inputArgs[(idx+1)]);
+        }
+        
+    }
+    
+    public static String getMatrixLayout(String[] inputArgs){
+        
+        int idx=0;
+        while (idx<inputArgs.length && !inputArgs[idx].equals("-l")){
+            idx++;
+        }
+        if (idx==inputArgs.length){
+            return("none");
+        }else{
+            return(inputArgs[(idx+1)]);
+        }
+        
+    }
+    
+    public static String getErrorBudget(String[] inputArgs){
+        
+        int idx=0;
+        while (idx<inputArgs.length && !inputArgs[idx].equals("-e")){
+            idx++;
+        }
+        if (idx==inputArgs.length){
+            return("none");
+        }else{
+            return(inputArgs[(idx+1)]);
+        }
+        
+    }
+    
+    public static String getTruncationThreshold(String[] inputArgs){
+        
+        int idx=0;
+        while (idx<inputArgs.length && !inputArgs[idx].equals("-d")){
+            idx++;
+        }
+        if (idx==inputArgs.length){
+            return("none");
+        }else{
+            return(inputArgs[(idx+1)]);
+        }
+        
+    }
+    
+    public static String getStorageDirectory(String[] inputArgs){
+        
+        int idx=0;
+        while (idx<inputArgs.length && !inputArgs[idx].equals("-x")){
+            idx++;
+        }
+        if (idx==inputArgs.length){
+            return("none");
+        }else{
+            return(inputArgs[(idx+1)]);
+        }
+        
+    }
+    
+    public static String getStateNumbering(String[] inputArgs){
+        
+        int idx=0;
+        while (idx<inputArgs.length && !inputArgs[idx].equals("-n")){
+            idx++;
+        }
+        if (idx==inputArgs.length){
+            return("none");
+        }else{
+            return(inputArgs[(idx+1)]);
+        }
+        
+    }
+    
+    public static String getWorkers(String[] inputArgs){
+        
+        int idx=0;
+        while (idx<inputArgs.length && !inputArgs[idx].equals("-w")){
+            idx++;
+        }
+        if (idx==inputArgs.length){
+            return("none");
+        }else{
+            return(inputArgs[(idx+1)]);
+        }
+        
+    }
+    
+    public static String getOutputTimes(String[] inputArgs){
+        
+        int idx=0;
+        while (idx<inputArgs.length && !inputArgs[idx].equals("-g")){
+            idx++;
+        }
+        if (idx==inputArgs.length){
+            return("none");
+        }else{
+            return(inputArgs[(idx+1)]);
+        }
+        
+    }
+    
+    public static String getPrecision(String[] inputArgs){
+        
+        int idx=0;
+        while (idx<inputArgs.length && !inputArgs[idx].equals("-f")){
+            idx++;
+        }
+        if (idx==inputArgs.length){
+            return("none");
+        }else{
+            return(inputArgs[(idx+1)]);
+        }
+        
+    }
+    
+    public static String getNumberOfThreads(String[] inputArgs){
+        
+        int idx=0;
+        while (idx<inputArgs.length && !inputArgs[idx].equals("-p")){
+            idx++;
+        }
+        if (idx==inputArgs.length){
+            return("none");
+        }else{
+            if (Integer.parseInt(inputArgs[(idx+1)])>0){
+                return(inputArgs[(idx+1)]);
+            }else{
+                return("none");
+            }
+        }
+        
+    }
+
     public static String getResultsDirectory(String[] inputArgs){
         
         int idx=0;
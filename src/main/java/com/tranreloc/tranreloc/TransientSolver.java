@@ -0,0 +1,47 @@
+/*
+ * Copyright 2022 Anders Reenberg Andersen.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.tranreloc.tranreloc;
+
+/**
+ *
+ * @author Anders Reenberg Andersen
+ */
+
+//Interface of the methods that advance the state
+//distribution of a segment. The solvers keep their
+//workspace between solves and report the cost of
+//the latest solve.
+
+public interface TransientSolver {
+    
+    //install the matrix of the next solve
+    void setTransitionRateMatrix(StateSpace S, TransitionRateMatrix tranMat);
+    
+    void setParallelExecutor(ParallelExecutor executor);
+    
+    //replaces the state distribution by the distribution
+    //at time t (stationary solvers ignore t)
+    void solve(StateDistribution stateDist, double t, double epsilon);
+    
+    //matrix-vector products (or equivalent sweeps over
+    //the matrix) used by the latest solve
+    int getMatrixVectorProducts();
+    
+    //wall-clock time of the latest solve in seconds
+    double getSolveTime();
+    
+}
@@ -15,6 +15,9 @@
  */
 package com.tranreloc.tranreloc;
 
+import java.io.File;
+import java.util.Arrays;
+
 /**
  *
  * @author Anders Reenberg Andersen
@@ -22,9 +25,42 @@ package com.tranreloc.tranreloc;
 public class TransitionRateMatrix {
     
     StateSpace S;
-    double[][] rates;
-    int[][] columnIndices;
+    
+    //the matrix is stored in compressed sparse row (CSR) format.
+    //the off-diagonal elements of row i are located at
+    //rowPtr[i],...,rowPtr[i+1]-1 in columnIndices and rates,
+    //and the diagonal is stored separately.
+    int[] rowPtr;
+    int[] columnIndices;
+    double[] rates;
+    double[] diagonal;
     double mxRate; //use for uniformization
+    int firstRow; //state of the first stored row (0 unless the rows are split)
+    boolean transposed; //the rows hold the incoming transitions
+    boolean embedded; //the rates are scaled to the embedded chain
+    
+    //single precision storage of the embedded chain. when
+    //enabled, rates and diagonal are replaced by these arrays
+    //in convertToEmbeddedChain (all sums are still in double)
+    boolean singlePrecision;
+    float[] ratesSingle;
+    float[] diagonalSingle;
+    
+    //off-heap storage of the embedded chain. when a directory
+    //is given, columnIndices, rates and diagonal are moved to
+    //memory-mapped files in convertToEmbeddedChain (rowPtr
+    //stays on the heap)
+    File storageDirectory;
+    MappedArray mappedIndices;
+    MappedArray mappedRates;
+    MappedArray mappedDiagonal;
+    
+    ParallelExecutor executor; //generates the rows in blocks (null: in one pass)
+    
+    //elements of the latest generated row
+    long[] rowColumns;
+    double[] rowRates;
+    double rowDiagonal;
     
     public TransitionRateMatrix(StateSpace S){
         
@@ -35,267 +71,665 @@ public class TransitionRateMatrix {
     public void generateMatrix(){
         
         System.out.print("Generating transition rate matrix...");
+        if (executor!=null && executor.getNumberOfThreads()>1){
+            generateBlocks();
+        }else{
+            generateRows(0,S.stateSpaceSize);
+        }
+        System.out.println(" done.");
         
-        rates = new double[S.stateSpaceSize][];
-        columnIndices = new int[S.stateSpaceSize][];
-        double[] tempRates;
-        int[] tempIndices;
-        S.resetState();
-        double diag,rt;
-        int idx,ii,cidx;
+    }
+    
+    public void setParallelExecutor(ParallelExecutor executor){
+        //threads that generate the rows
+        
+        this.executor = executor;
+        
+    }
+    
+    private void generateBlocks(){
+        //each thread walks a block of rows with its own copy of
+        //the state space, which is moved directly to the first
+        //state of the block. a counting pass gives the number of
+        //jumps of each row, which bounds its length (jumps to the
+        //same state are merged), so the arrays are allocated once.
+        //each thread then writes its rows into its slice, and the
+        //slices are finally moved together.
+        
+        int n = S.stateSpaceSize;
+        int[] bounds = executor.partitionEqual(n);
+        int nBlocks = bounds.length-1;
+        rowPtr = new int[(n+1)];
+        diagonal = new double[n];
+        firstRow = 0;
+        
+        //jumps of each row (stored at rowPtr[i+1])
+        executor.forEachBlock(bounds,(fromRow,toRow) -> {
+            StateSpace local = new StateSpace(S);
+            local.setState(fromRow);
+            for (int i=fromRow; i<toRow; i++){
+                local.currentTotalJumps();
+                rowPtr[(i+1)] = local.ctjumps;
+                local.nextState();
+            }
+        });
+        
+        //first element of each slice
+        int[] start = new int[(nBlocks+1)];
+        long total=0;
+        for (int b=0; b<nBlocks; b++){
+            start[b] = (int) total;
+            for (int i=bounds[b]; i<bounds[(b+1)]; i++){
+                total += rowPtr[(i+1)];
+            }
+            if (total>StateSpace.MAX_STATES){
+                ensureCapacity(total); //rejects the matrix
+            }
+        }
+        start[nBlocks] = (int) total;
+        columnIndices = new int[(int) total];
+        rates = new double[(int) total];
+        
+        //each thread writes its rows from the start of its slice
+        //into the shared arrays
+        int[] end = new int[nBlocks];
+        double[] blockMxRate = new double[nBlocks];
+        executor.forEachBlock(bounds,(fromRow,toRow) -> {
+            int b = Arrays.binarySearch(bounds,fromRow);
+            TransitionRateMatrix writer = new TransitionRateMatrix(new StateSpace(S));
+            writer.columnIndices = columnIndices;
+            writer.rates = rates;
+            writer.diagonal = diagonal;
+            writer.mxRate = Double.MIN_VALUE;
+            writer.S.setState(fromRow);
+            int k = start[b];
+            for (int i=fromRow; i<toRow; i++){
+                k = writer.generateRow(i,k);
+                rowPtr[(i+1)] = k;
+                writer.S.nextState();
+            }
+            end[b] = k;
+            blockMxRate[b] = writer.mxRate;
+        });
+        
+        //close the gaps left by merged jumps. the elements only
+        //move toward the front, so the slices are moved in order.
+        int shift,next=0;
         mxRate = Double.MIN_VALUE;
+        for (int b=0; b<nBlocks; b++){
+            shift = start[b]-next;
+            if (shift>0){
+                System.arraycopy(columnIndices,start[b],columnIndices,next,end[b]-start[b]);
+                System.arraycopy(rates,start[b],rates,next,end[b]-start[b]);
+                for (int i=bounds[b]; i<bounds[(b+1)]; i++){
+                    rowPtr[(i+1)] -= shift;
+                }
+            }
+            next += end[b]-start[b];
+            mxRate = Math.max(mxRate,blockMxRate[b]);
+        }
+        
+    }
     
-        for (int sidx=0; sidx<S.stateSpaceSize; sidx++){
+    public void generateRows(int fromRow, int toRow){
+        //stores the rows fromRow,...,toRow-1 only (as rows
+        //0,...,toRow-fromRow-1). used when the rows are split
+        //between processes.
+        
+        int nRows = toRow-fromRow;
+        firstRow = fromRow;
+        rowPtr = new int[(nRows+1)];
+        diagonal = new double[nRows];
+        columnIndices = new int[(nRows*4)];
+        rates = new double[columnIndices.length];
+        S.setState(fromRow);
+        mxRate = Double.MIN_VALUE;
+    
+        for (int r=0; r<nRows; r++){
             
-            //allocate memory
+            //allocate memory for the current number of jumps
             S.currentTotalJumps();
-            //allocate current number of jumps plus diagonal
-//            rates[sidx] = new double[(S.ctjumps+1)];
-//            columnIndices[sidx] = new int[(S.ctjumps+1)];
-            tempRates = new double[(S.ctjumps+1)];
-            tempIndices = new int[(S.ctjumps+1)];
+            ensureCapacity((long)rowPtr[r]+S.ctjumps);
             
-            //insert rates
-            idx=0;
-            diag=0;
+            //insert rates and close the row
+            rowPtr[(r+1)] = generateRow(fromRow+r,rowPtr[r]);
             
-            //loop through each asset
-            for (int assetIdx=0; assetIdx<S.assets.length; assetIdx++){
-                
-                //DISCHARGE AND LOCAL PHASE CHANGE
-                //loop through each distribution in asset
-                for (int didx=0; didx<S.assets[assetIdx].nPhases.length; didx++){
-                    if (S.assets[assetIdx].currentState_CapDist(didx)>0){ //if some of the capacity is occupied
-                       
-                        for (int phIdx=0; phIdx<S.assets[assetIdx].nPhases[didx]; phIdx++){ //run through each phase in the dist.
-                            if (S.assets[assetIdx].currentState_PhaseType(didx)[phIdx]>0){
-                                //discharge rate
-                                tempRates[idx] = rateDischarge(assetIdx,didx,phIdx)*(double)S.assets[assetIdx].currentState_PhaseType(didx)[phIdx];
-                                diag+=tempRates[idx];
-                                tempIndices[idx] = S.newState_CapChange(assetIdx, didx, phIdx,"down");
-                                idx++;
-                                
-                                //local phase change - loop through the other phases
-                                for (int phIdx_to=0; phIdx_to<S.assets[assetIdx].nPhases[didx]; phIdx_to++){
-                                    if (phIdx!=phIdx_to){
-                                        tempRates[idx] = rateLocalTransition(assetIdx,didx,phIdx,phIdx_to)*(double)S.assets[assetIdx].currentState_PhaseType(didx)[phIdx];
-                                        diag+=tempRates[idx];
-                                        tempIndices[idx] = S.newState_PhaseChange(assetIdx,didx,phIdx,phIdx_to);
-                                        idx++;
-                                    }
+            //move to next state
+            S.nextState();
+        }
+        
+    }
+    
+    int generateRow(int sidx, int rowStart){
+        //inserts the off-diagonal elements of the current state
+        //of S at rowStart,... and its diagonal element. returns
+        //the end of the row. the state space fits in an array
+        //here, so the columns fit in an int.
+        
+        int len = rowElements();
+        for (int k=0; k<len; k++){
+            columnIndices[(rowStart+k)] = (int) rowColumns[k];
+            rates[(rowStart+k)] = rowRates[k];
+        }
+        
+        //insert the diagonal
+        diagonal[(sidx-firstRow)] = rowDiagonal;
+        
+        //update maximum rate (compare the new diagonal to the current
+        //largest absolute diagonal element)
+        if (-rowDiagonal>mxRate){
+            mxRate=-rowDiagonal;
+        }
+        
+        return(rowStart+len);
+    }
+    
+    int rowElements(){
+        //generates the off-diagonal elements of the current state
+        //of S into rowColumns and rowRates (jumps to the same
+        //state are merged) and its diagonal into rowDiagonal.
+        //returns the number of elements.
+        
+        if (S.ctjumps<0){
+            S.currentTotalJumps();
+        }
+        if (rowColumns==null || rowColumns.length<S.ctjumps){
+            rowColumns = new long[Math.max(S.ctjumps,16)];
+            rowRates = new double[rowColumns.length];
+        }
+        
+        double diag,rt;
+        int idx,ii;
+        long cidx;
+        
+        //insert rates
+        idx=0;
+        diag=0;
+        
+        //loop through each asset
+        for (int assetIdx=0; assetIdx<S.assets.length; assetIdx++){
+            
+            //DISCHARGE AND LOCAL PHASE CHANGE
+            //loop through each distribution in asset
+            for (int didx=0; didx<S.assets[assetIdx].nPhases.length; didx++){
+                if (S.assets[assetIdx].currentState_CapDist(didx)>0){ //if some of the capacity is occupied
+                   
+                    for (int phIdx=0; phIdx<S.assets[assetIdx].nPhases[didx]; phIdx++){ //run through each phase in the dist.
+                        if (S.assets[assetIdx].currentState_PhaseType(didx)[phIdx]>0){
+                            //discharge rate
+                            rowRates[idx] = rateDischarge(assetIdx,didx,phIdx)*(double)S.assets[assetIdx].currentState_PhaseType(didx)[phIdx];
+                            diag+=rowRates[idx];
+                            rowColumns[idx] = S.newState_CapChange(assetIdx, didx, phIdx,"down");
+                            idx++;
+                            
+                            //local phase change - loop through the other phases
+                            for (int phIdx_to=0; phIdx_to<S.assets[assetIdx].nPhases[didx]; phIdx_to++){
+                                if (phIdx!=phIdx_to){
+                                    rowRates[idx] = rateLocalTransition(assetIdx,didx,phIdx,phIdx_to)*(double)S.assets[assetIdx].currentState_PhaseType(didx)[phIdx];
+                                    diag+=rowRates[idx];
+                                    rowColumns[idx] = S.newState_PhaseChange(assetIdx,didx,phIdx,phIdx_to);
+                                    idx++;
                                 }
-                                
                             }
+                            
                         }
-                        
                     }
-                }
                     
-                //PRIMARY ARRIVALS
-                if (S.assets[assetIdx].Kuse<S.assets[assetIdx].capacity){ //if there is free capacity
+                }
+            }
+                
+            //PRIMARY ARRIVALS
+            if (S.assets[assetIdx].Kuse<S.assets[assetIdx].capacity){ //if there is free capacity
+                
+                //run through each phase in the primary dist.
+                for (int phIdx=0; phIdx<S.assets[assetIdx].nPhases[0]; phIdx++){
                     
-                    //run through each phase in the primary dist.
-                    for (int phIdx=0; phIdx<S.assets[assetIdx].nPhases[0]; phIdx++){
-                        
-                        cidx = S.newState_CapChange(assetIdx,0,phIdx,"up");
-                        rt = rateArrival(assetIdx,phIdx);
-                        ii=0;
-                        while (ii<idx && tempIndices[ii]!=cidx){
-                            ii++;
-                        }
-                        if (ii<idx){
-                            tempRates[ii] += rt;
-                        }else{
-                            tempRates[idx] = rt;
-                            tempIndices[idx] = cidx;
-                            idx++; 
-                        }
-                        diag+=rt;
-                        
+                    cidx = S.newState_CapChange(assetIdx,0,phIdx,"up");
+                    rt = rateArrival(assetIdx,phIdx);
+                    ii=0;
+                    while (ii<idx && rowColumns[ii]!=cidx){
+                        ii++;
+                    }
+                    if (ii<idx){
+                        rowRates[ii] += rt;
+                    }else{
+                        rowRates[idx] = rt;
+                        rowColumns[idx] = cidx;
+                        idx++; 
                     }
+                    diag+=rt;
                     
-                //RELOCATIONS TO OTHER ASSETS
-                }else if (S.assets[assetIdx].Kuse==S.assets[assetIdx].capacity){ //if entire capacity is occupied
+                }
+                
+            //RELOCATIONS TO OTHER ASSETS
+            }else if (S.assets[assetIdx].Kuse==S.assets[assetIdx].capacity){ //if entire capacity is occupied
+                    
+                for (int assetIdx_to=0; assetIdx_to<S.assets.length; assetIdx_to++){
+                    if (assetIdx!=assetIdx_to && S.assets[assetIdx_to].Kuse<S.assets[assetIdx_to].capacity &&
+                            S.relMap.canRelocateToAsset(assetIdx,assetIdx_to)){
                         
-                    for (int assetIdx_to=0; assetIdx_to<S.assets.length; assetIdx_to++){
-                        if (assetIdx!=assetIdx_to && S.assets[assetIdx_to].Kuse<S.assets[assetIdx_to].capacity &&
-                                S.relMap.canRelocateToAsset(assetIdx,assetIdx_to)){
-                            
-                                for (int didx=0; didx<S.relMap.getRelocationToDist(assetIdx,assetIdx_to).length; didx++){
-                                    for (int phIdx=0; phIdx<S.assets[assetIdx_to].nPhases[S.relMap.getRelocationToDist(assetIdx,assetIdx_to)[didx]]; phIdx++){
-                                        
-                                        cidx = S.newState_CapChange(assetIdx_to,
-                                                S.relMap.getRelocationToDist(assetIdx,assetIdx_to)[didx], phIdx, "up");
-                                        rt = rateRelocation(assetIdx,assetIdx_to,didx,phIdx);
-                                        ii=0;
-                                        while (ii<idx && tempIndices[ii]!=cidx){
-                                            ii++;
-                                        }
-                                        if (ii<idx){
-                                            tempRates[ii] += rt;
-                                        }else{
-                                            tempRates[idx] = rt;
-                                            tempIndices[idx] = cidx;
-                                            idx++;
-                                        }
-                                        diag+=rt;
-                                        
-                                        
-                                        
+                            for (int didx=0; didx<S.relMap.getRelocationToDist(assetIdx,assetIdx_to).length; didx++){
+                                for (int phIdx=0; phIdx<S.assets[assetIdx_to].nPhases[S.relMap.getRelocationToDist(assetIdx,assetIdx_to)[didx]]; phIdx++){
+                                    
+                                    cidx = S.newState_CapChange(assetIdx_to,
+                                            S.relMap.getRelocationToDist(assetIdx,assetIdx_to)[didx], phIdx, "up");
+                                    rt = rateRelocation(assetIdx,assetIdx_to,didx,phIdx);
+                                    ii=0;
+                                    while (ii<idx && rowColumns[ii]!=cidx){
+                                        ii++;
+                                    }
+                                    if (ii<idx){
+                                        rowRates[ii] += rt;
+                                    }else{
+                                        rowRates[idx] = rt;
+                                        rowColumns[idx] = cidx;
+                                        idx++;
                                     }
+                                    diag+=rt;
+                                    
+                                    
                                     
                                 }
-                            
-                        }
+                                
+                            }
+                        
                     }
-                    
-                    
                 }
                 
+                
             }
             
-            //store values
-            rates[sidx] = new double[(idx+1)];
-            columnIndices[sidx] = new int[(idx+1)];
-            for (int tidx=0; tidx<idx; tidx++){
-                rates[sidx][tidx] = tempRates[tidx];
-                columnIndices[sidx][tidx] = tempIndices[tidx];
-            }
-            
-            //insert diagonal
-            rates[sidx][idx] = -diag;
-            columnIndices[sidx][idx] = sidx;
-            
-            //update maximum rate (compare the new diagonal to the current
-            //largest absolute diagonal element)
-            if (diag>mxRate){
-                mxRate=diag;
-            }
-            
-            //move to next state
-            S.nextState();
         }
         
-        System.out.println(" done.");
+        rowDiagonal = -diag;
         
+        return(idx);
+    }
+    
+    void ensureCapacity(long required){
+        //grow the arrays of off-diagonal elements
+        //such that at least required elements fit
+        
+        if (required>StateSpace.MAX_STATES){
+            throw new IllegalArgumentException("The matrix has more than " + StateSpace.MAX_STATES
+                    + " off-diagonal elements. Use the matrix-free (-l free) or out-of-core (-l disk) layout.");
+        }
+        if (required>columnIndices.length){
+            int newLength = (int) Math.min(Integer.MAX_VALUE-8,
+                    Math.max(required,(long)columnIndices.length*3/2));
+            columnIndices = Arrays.copyOf(columnIndices,newLength);
+            rates = Arrays.copyOf(rates,newLength);
+        }
+        
+    }
+    
+    public int numberOfNonZeros(){
+        //off-diagonal elements only
+        return(rowPtr[(rowPtr.length-1)]);
+    }
+    
+    public int[] partitionRows(ParallelExecutor executor){
+        //row blocks with roughly the same number of elements
+        
+        return(executor.partitionRows(rowPtr,S.stateSpaceSize));
     }
     
     
     public void transposeTransitionMatrix(){
         
         System.out.print("Transposing...");
-
-        double[][] tempRates = new double[rates.length][];
-        int[][] tempIndices = new int[columnIndices.length][];
-        int[] k = new int[rates.length];
-        
-        //allocate memory
-        for (int sidx=0; sidx<rates.length; sidx++){
-            for (int jidx=0; jidx<rates[sidx].length; jidx++){
-                k[columnIndices[sidx][jidx]]++;
-            }
+        
+        int n = S.stateSpaceSize;
+        int nnz = numberOfNonZeros();
+        int[] tempPtr = new int[(n+1)];
+        int[] tempIndices = new int[nnz];
+        double[] tempRates = (rates==null) ? null : new double[nnz];
+        float[] tempRatesSingle = (ratesSingle==null) ? null : new float[nnz];
+        
+        //count the elements in each column
+        for (int k=0; k<nnz; k++){
+            tempPtr[(columnIndices[k]+1)]++;
         }
-        for (int sidx=0; sidx<rates.length; sidx++){
-            tempRates[sidx] = new double[k[sidx]];
-            tempIndices[sidx] = new int[k[sidx]];
+        for (int sidx=0; sidx<n; sidx++){
+            tempPtr[(sidx+1)] += tempPtr[sidx];
         }
         
-        //insert values;
-        k = new int[rates.length];
-        for (int sidx=0; sidx<rates.length; sidx++){
-            for (int jidx=0; jidx<rates[sidx].length; jidx++){
-                tempRates[columnIndices[sidx][jidx]][k[columnIndices[sidx][jidx]]] = rates[sidx][jidx];
-                tempIndices[columnIndices[sidx][jidx]][k[columnIndices[sidx][jidx]]] = sidx;
-                
-                k[columnIndices[sidx][jidx]]++;
+        //insert values (rows are visited in order, so the
+        //column indices of each transposed row stay sorted)
+        int[] k = Arrays.copyOf(tempPtr,n);
+        int col;
+        for (int sidx=0; sidx<n; sidx++){
+            for (int jidx=rowPtr[sidx]; jidx<rowPtr[(sidx+1)]; jidx++){
+                col = columnIndices[jidx];
+                if (rates!=null){
+                    tempRates[k[col]] = rates[jidx];
+                }else{
+                    tempRatesSingle[k[col]] = ratesSingle[jidx];
+                }
+                tempIndices[k[col]] = sidx;
+                k[col]++;
             }
         }
         
+        //the diagonal is unaffected by the transposition
+        rowPtr = tempPtr;
         rates = tempRates;
+        ratesSingle = tempRatesSingle;
         columnIndices = tempIndices;
-        
-        
-//        double[][] tempRates = new double[rates.length][];
-//        int[][] tempIndices = new int[columnIndices.length][];
-//        
-//        int kk,j; boolean found;
-//        for (int sidx=0; sidx<rates.length; sidx++){
-//            
-//            kk=0;
-//            for (int i=0; i<rates.length; i++){
-//                found=false;
-//                j=0;
-//                while (j<columnIndices[i].length && !found){
-//                    if (columnIndices[i][j]==sidx){
-//                        kk++;
-//                        found=true;
-//                    }
-//                    j++;
-//                }
-//            }
-//            tempRates[sidx] = new double[kk];
-//            tempIndices[sidx] = new int[kk];
-//            
-//            kk=0;
-//            for (int i=0; i<rates.length; i++){
-//                found=false;
-//                for (j=0; j<columnIndices[i].length; j++){
-//                    if (columnIndices[i][j]==sidx){
-//                        if (!found){
-//                            tempIndices[sidx][kk]=i;
-//                            tempRates[sidx][kk]=rates[i][j];
-//                            found=true;
-//                        }else{
-//                            tempRates[sidx][kk]+=rates[i][j];
-//                        }
-//                        
-//                    }
-//                }
-//                if (found){
-//                    kk++;
-//                }
-//            }
-//            
-//        }
-//        
-//        for (int i=0; i<rates.length; i++){
-//            rates[i] = new double[tempRates[i].length];
-//            columnIndices[i] = new int[tempIndices[i].length];
-//            for (j=0; j<rates[i].length; j++){
-//                rates[i][j] = tempRates[i][j];
-//                columnIndices[i][j] = tempIndices[i][j];
-//            }
-//        }
-//        
-//        tempIndices=null;
-//        tempRates=null;
+        transposed = !transposed;
         
         System.out.println(" done.");
     }
     
     
+    public void permute(StateOrdering ordering){
+        //renumbers the states, such that row and column i of the
+        //permuted matrix belong to state ordering.order[i]. used
+        //on the generated matrix (before it is transposed).
+        
+        int n = S.stateSpaceSize;
+        int nnz = numberOfNonZeros();
+        int[] order = ordering.order;
+        int[] position = ordering.position;
+        int[] tempPtr = new int[(n+1)];
+        int[] tempIndices = new int[nnz];
+        double[] tempRates = new double[nnz];
+        double[] tempDiagonal = new double[n];
+        
+        int idx=0,sidx;
+        for (int i=0; i<n; i++){
+            sidx = order[i];
+            for (int k=rowPtr[sidx]; k<rowPtr[(sidx+1)]; k++){
+                tempIndices[idx] = position[columnIndices[k]];
+                tempRates[idx] = rates[k];
+                idx++;
+            }
+            tempPtr[(i+1)] = idx;
+            tempDiagonal[i] = diagonal[sidx];
+        }
+        
+        rowPtr = tempPtr;
+        columnIndices = tempIndices;
+        rates = tempRates;
+        diagonal = tempDiagonal;
+        
+    }
+    
     public void convertToEmbeddedChain(){
         
         System.out.print("Converting to embedded chain...");
         
         double delta_t = 1.0/mxRate;
-        for (int i=0; i<rates.length; i++){ //scale all transitions
-            for (int j=0; j<rates[i].length; j++){
-                rates[i][j] *= delta_t;
-            }
+        int nnz = numberOfNonZeros();
+        for (int k=0; k<nnz; k++){ //scale all transitions
+            rates[k] *= delta_t;
         }
-        for (int i=0; i<rates.length; i++){ //add 1 to diagonal
-            for (int j=0; j<rates[i].length; j++){
-                if (columnIndices[i][j]==i){
-                    rates[i][j]+=1.0;
-                }
+        for (int i=0; i<diagonal.length; i++){ //scale and add 1 to diagonal
+            diagonal[i] = diagonal[i]*delta_t+1.0;
+        }
+        embedded = true;
+        
+        if (singlePrecision){
+            //the probabilities of the embedded chain are in [0,1],
+            //so rounding them to float costs about 7 digits
+            ratesSingle = new float[nnz];
+            for (int k=0; k<nnz; k++){
+                ratesSingle[k] = (float) rates[k];
+            }
+            diagonalSingle = new float[diagonal.length];
+            for (int i=0; i<diagonal.length; i++){
+                diagonalSingle[i] = (float) diagonal[i];
             }
-        }    
+            rates = null;
+            diagonal = null;
+            System.out.print(" (single precision)");
+        }else if (storageDirectory!=null){
+            mappedIndices = new MappedArray(columnIndices,nnz,storageDirectory);
+            mappedRates = new MappedArray(rates,nnz,storageDirectory);
+            mappedDiagonal = new MappedArray(diagonal,diagonal.length,storageDirectory);
+            columnIndices = null;
+            rates = null;
+            diagonal = null;
+            System.out.print(" (memory-mapped)");
+        }
         
         System.out.println(" done.");
         
     }
+    
+    public void setSinglePrecision(boolean singlePrecision){
+        //store the embedded chain in single precision. this halves
+        //the bytes per element streamed by each product. must be
+        //set before convertToEmbeddedChain is called.
+        
+        this.singlePrecision = singlePrecision;
+        
+    }
+    
+    public void setStorageDirectory(File storageDirectory){
+        //keep the embedded chain in memory-mapped files in the
+        //directory instead of on the heap. only used in double
+        //precision, and must be set before convertToEmbeddedChain
+        //is called.
+        
+        this.storageDirectory = storageDirectory;
+        
+    }
+    
+    public void multiply(double[] x, double[] y, int fromRow, int toRow){
+        //sparse matrix-vector product y=A*x over the rows
+        //fromRow,...,toRow-1, where A is the stored matrix.
+        //with the transposed embedded chain stored, this
+        //advances a state distribution by one jump.
+        
+        double sm;
+        if (ratesSingle!=null){
+            for (int i=fromRow; i<toRow; i++){
+                sm = diagonalSingle[i]*x[i];
+                for (int k=rowPtr[i]; k<rowPtr[(i+1)]; k++){
+                    sm += ratesSingle[k]*x[columnIndices[k]];
+                }
+                y[i] = sm;
+            }
+            return;
+        }
+        if (mappedRates!=null){
+            for (int i=fromRow; i<toRow; i++){
+                sm = mappedDiagonal.getDouble(i)*x[i];
+                for (int k=rowPtr[i]; k<rowPtr[(i+1)]; k++){
+                    sm += mappedRates.getDouble(k)*x[mappedIndices.getInt(k)];
+                }
+                y[i] = sm;
+            }
+            return;
+        }
+        for (int i=fromRow; i<toRow; i++){
+            sm = diagonal[i]*x[i];
+            for (int k=rowPtr[i]; k<rowPtr[(i+1)]; k++){
+                sm += rates[k]*x[columnIndices[k]];
+            }
+            y[i] = sm;
+        }
+        
+    }
+    
+    public void multiplyRows(double[] x, double[] y, int[] rows, int from, int to){
+        //y=A*x for the rows rows[from],...,rows[to-1] only (used
+        //when x is zero outside a small set of states)
+
+        double sm;
+        int i;
+        if (mappedRates!=null){
+            for (int j=from; j<to; j++){
+                i = rows[j];
+                sm = mappedDiagonal.getDouble(i)*x[i];
+                for (int k=rowPtr[i]; k<rowPtr[(i+1)]; k++){
+                    sm += mappedRates.getDouble(k)*x[mappedIndices.getInt(k)];
+                }
+                y[i] = sm;
+            }
+            return;
+        }
+        for (int j=from; j<to; j++){
+            i = rows[j];
+            sm = diagonal[i]*x[i];
+            for (int k=rowPtr[i]; k<rowPtr[(i+1)]; k++){
+                sm += rates[k]*x[columnIndices[k]];
+            }
+            y[i] = sm;
+        }
+
+    }
+
+    public int[][] columnPattern(){
+        //the rows of the elements in each column, as {pointers,
+        //rows}. for the transposed matrix, these are the states
+        //reached from each state in one transition.
+
+        int n = S.stateSpaceSize;
+        int nnz = numberOfNonZeros();
+        int[] ptr = new int[(n+1)];
+        int[] idx = new int[nnz];
+        for (int k=0; k<nnz; k++){
+            ptr[(columnIndex(k)+1)]++;
+        }
+        for (int sidx=0; sidx<n; sidx++){
+            ptr[(sidx+1)] += ptr[sidx];
+        }
+        int[] k = Arrays.copyOf(ptr,n);
+        int col;
+        for (int sidx=0; sidx<n; sidx++){
+            for (int jidx=rowPtr[sidx]; jidx<rowPtr[(sidx+1)]; jidx++){
+                col = columnIndex(jidx);
+                idx[k[col]] = sidx;
+                k[col]++;
+            }
+        }
+
+        return(new int[][]{ptr,idx});
+    }
 
+    public void multiply(double[] x, double[] y, int nVectors, int fromRow, int toRow){
+        //product Y=A*X with nVectors vectors for the rows
+        //fromRow,...,toRow-1. the vectors are interleaved
+        //(element i of vector v at i*nVectors+v). the vectors
+        //are multiplied four at a time with the sums held in
+        //local variables, so each element of the matrix is read
+        //once per four vectors and the four elements of x read
+        //for it are adjacent.
+        
+        int v=0;
+        for (; (v+4)<=nVectors; v+=4){
+            multiply4(x,y,nVectors,v,fromRow,toRow);
+        }
+        double sm;
+        for (; v<nVectors; v++){
+            for (int i=fromRow; i<toRow; i++){
+                sm = diagonalElement(i)*x[(i*nVectors+v)];
+                for (int k=rowPtr[i]; k<rowPtr[(i+1)]; k++){
+                    sm += rate(k)*x[(columnIndex(k)*nVectors+v)];
+                }
+                y[(i*nVectors+v)] = sm;
+            }
+        }
+        
+    }
+    
+    private void multiply4(double[] x, double[] y, int nVectors, int v, int fromRow, int toRow){
+        //the vectors v,...,v+3 of the product above
+        
+        double s0,s1,s2,s3,a;
+        int o,c;
+        for (int i=fromRow; i<toRow; i++){
+            o = i*nVectors+v;
+            a = diagonalElement(i);
+            s0 = a*x[o]; s1 = a*x[(o+1)];
+            s2 = a*x[(o+2)]; s3 = a*x[(o+3)];
+            for (int k=rowPtr[i]; k<rowPtr[(i+1)]; k++){
+                a = rate(k);
+                c = columnIndex(k)*nVectors+v;
+                s0 += a*x[c]; s1 += a*x[(c+1)];
+                s2 += a*x[(c+2)]; s3 += a*x[(c+3)];
+            }
+            y[o] = s0; y[(o+1)] = s1;
+            y[(o+2)] = s2; y[(o+3)] = s3;
+        }
+        
+    }
+    
+    public void multiply(float[] x, float[] y, int fromRow, int toRow){
+        //as above for vectors stored in single precision. each
+        //row is summed in double and rounded once.
+        
+        double sm;
+        if (ratesSingle!=null){
+            for (int i=fromRow; i<toRow; i++){
+                sm = diagonalSingle[i]*x[i];
+                for (int k=rowPtr[i]; k<rowPtr[(i+1)]; k++){
+                    sm += ratesSingle[k]*x[columnIndices[k]];
+                }
+                y[i] = (float) sm;
+            }
+            return;
+        }
+        for (int i=fromRow; i<toRow; i++){
+            sm = diagonal[i]*x[i];
+            for (int k=rowPtr[i]; k<rowPtr[(i+1)]; k++){
+                sm += rates[k]*x[columnIndices[k]];
+            }
+            y[i] = (float) sm;
+        }
+        
+    }
+    
+    public double rate(int k){
+        //stored off-diagonal element k
+        
+        if (rates!=null){
+            return(rates[k]);
+        }
+        return((ratesSingle!=null) ? ratesSingle[k] : mappedRates.getDouble(k));
+    }
+    
+    public int columnIndex(int k){
+        //column of stored off-diagonal element k
+        
+        return((columnIndices!=null) ? columnIndices[k] : mappedIndices.getInt(k));
+    }
+    
+    public double diagonalElement(int i){
+        //stored diagonal element i
+        
+        if (diagonal!=null){
+            return(diagonal[i]);
+        }
+        return((diagonalSingle!=null) ? diagonalSingle[i] : mappedDiagonal.getDouble(i));
+    }
+    
+    public double generatorScale(){
+        //factor that turns the stored off-diagonal
+        //elements into generator rates
+        
+        if (embedded){
+            return(mxRate);
+        }
+        return(1.0);
+    }
+    
+    public double generatorDiagonal(int i){
+        //diagonal element i of the generator
+        
+        if (embedded){
+            return((diagonalElement(i)-1.0)*mxRate);
+        }
+        return(diagonalElement(i));
+    }
+    
+    public void close(){
+        //releases resources held outside the heap (none for
+        //the arrays, which are released by the garbage collector)
+    }
+    
     
     private double rateDischarge(int assetIdx, int didx, int phIdx){
         //returns the raw exit rate.
@@ -376,9 +810,10 @@ public class TransitionRateMatrix {
         
         for (int sidx=0; sidx<S.stateSpaceSize; sidx++){
             System.out.print(sidx + ": ");
-            for (int j=0; j<columnIndices[sidx].length; j++){
-                System.out.print(rates[sidx][j] + "(" + columnIndices[sidx][j] + ")" + " ");
+            for (int j=rowPtr[sidx]; j<rowPtr[(sidx+1)]; j++){
+                System.out.print(rate(j) + "(" + columnIndices[j] + ")" + " ");
             }
+            System.out.print(diagonalElement(sidx) + "(" + sidx + ")");
             System.out.println();
         }
         
@@ -0,0 +1,140 @@
+/*
+ * Copyright 2022 Anders Reenberg Andersen.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.tranreloc.tranreloc;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+
+/**
+ *
+ * @author Anders Reenberg Andersen
+ */
+
+//Class for the connections of the coordinator to the worker
+//processes (PartitionWorker) that hold the rows of the matrix.
+//The coordinator listens on a TCP port, and the workers connect
+//to it. The workers are either started here as local processes
+//(for a single machine or for testing), or started by hand on
+//other machines with the address of the coordinator.
+//Each worker holds a contiguous range of states, and the
+//coordinator relays the entries of the distribution that cross
+//the ranges (see PartitionedMatrix and PartitionedSolver).
+
+public class WorkerPool {
+
+    //commands sent to the workers
+    static final int QUIT = 0;
+    static final int GENERATE = 1;
+    static final int SOLVE = 2;
+    static final int RELEASE = 3;
+
+    int nWorkers;
+    Socket[] sockets;
+    DataInputStream[] in;
+    DataOutputStream[] out;
+    Process[] processes; //local workers (null for remote workers)
+
+    public static WorkerPool startLocal(int nWorkers, String paramDir){
+        //starts the workers as processes on this machine
+
+        return(new WorkerPool(nWorkers,0,paramDir));
+    }
+
+    public static WorkerPool await(int nWorkers, int port){
+        //waits for nWorkers workers started elsewhere to connect
+
+        return(new WorkerPool(nWorkers,port,null));
+    }
+
+    private WorkerPool(int nWorkers, int port, String paramDir){
+
+        this.nWorkers = nWorkers;
+        sockets = new Socket[nWorkers];
+        in = new DataInputStream[nWorkers];
+        out = new DataOutputStream[nWorkers];
+
+        try (ServerSocket server = new ServerSocket(port,nWorkers,
+                (paramDir!=null) ? InetAddress.getLoopbackAddress() : null)){
+
+            if (paramDir!=null){
+                processes = new Process[nWorkers];
+                String java = System.getProperty("java.home") + File.separator + "bin" + File.separator + "java";
+                for (int w=0; w<nWorkers; w++){
+                    processes[w] = new ProcessBuilder(java,"-cp",System.getProperty("java.class.path"),
+                            PartitionWorker.class.getName(),"localhost",
+                            String.valueOf(server.getLocalPort()),paramDir).inheritIO().start();
+                }
+                System.out.println("Started " + nWorkers + " local workers.");
+            }else{
+                System.out.println("Waiting for " + nWorkers + " workers on port " + server.getLocalPort() + "...");
+            }
+
+            //the workers are numbered in the order they connect
+            for (int w=0; w<nWorkers; w++){
+                sockets[w] = server.accept();
+                sockets[w].setTcpNoDelay(true);
+                in[w] = new DataInputStream(new BufferedInputStream(sockets[w].getInputStream(),1<<16));
+                out[w] = new DataOutputStream(new BufferedOutputStream(sockets[w].getOutputStream(),1<<16));
+            }
+            System.out.println(nWorkers + " workers connected.");
+
+        }catch(IOException e){
+            throw new RuntimeException("Could not connect the workers.",e);
+        }
+
+    }
+
+    public int size(){
+        return(nWorkers);
+    }
+
+    public void shutdown(){
+        //stops the workers and closes the connections
+
+        for (int w=0; w<nWorkers; w++){
+            try {
+                out[w].writeInt(QUIT);
+                out[w].flush();
+                sockets[w].close();
+            }catch(IOException e){
+                System.out.println("Warning: Could not stop worker " + w + ".");
+            }
+        }
+        if (processes!=null){
+            for (Process p : processes){
+                try {
+                    p.waitFor();
+                }catch(InterruptedException e){
+                    p.destroy();
+                }
+            }
+        }
+
+    }
+
+    static RuntimeException failure(IOException e){
+        return(new RuntimeException("Lost the connection to a worker.",e));
+    }
+
+}
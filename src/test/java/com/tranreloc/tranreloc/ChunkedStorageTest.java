@@ -0,0 +1,104 @@
+/*
+ * Copyright 2022 Anders Reenberg Andersen.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.tranreloc.tranreloc;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ *
+ * @author Anders Reenberg Andersen
+ */
+
+//Test of the chunked storage used for state spaces beyond an
+//array. The chunks are made small, such that the rows, vectors
+//and moved slices cross many chunk boundaries, and the results
+//of a sequence are compared with those of the arrays.
+
+public class ChunkedStorageTest {
+
+    @Test
+    public void chunkedSequenceMatchesArrays(){
+
+        double[][] reference = evaluate(false).getResults();
+        double[][] chunked = evaluate(true).getResults();
+
+        assertEquals(reference.length,chunked.length);
+        for (int t=0; t<reference.length; t++){
+            for (int j=0; j<reference[t].length; j++){
+                assertEquals(reference[t][j],chunked[t][j],1e-8);
+            }
+        }
+
+    }
+
+    @Test
+    public void movedSlicesCrossChunks(){
+
+        ChunkedArray a = ChunkedArray.ofLongs(100,3);
+        for (long k=0; k<100; k++){
+            a.setLong(k,k);
+        }
+        a.moveDown(37,5,60);
+        for (long k=0; k<60; k++){
+            assertEquals(37+k,a.getLong(5+k));
+        }
+
+    }
+
+    @Test
+    public void singleSegmentRejectsChunkedStateSpace(){
+
+        ReadParameters param = new ReadParameters("Parameters");
+        int[][] capacity = new int[1][param.nAssets];
+        for (int assetIdx=0; assetIdx<param.nAssets; assetIdx++){
+            capacity[0][assetIdx] = 60;
+        }
+        EvaluateSystem eval = new EvaluateSystem(param.nAssets,
+                new ReadRelocationMap("Parameters").getRelocationMap(),
+                param.arrivalRates,capacity,param.phDists);
+
+        assertThrows(IllegalArgumentException.class,() -> eval.evaluateSingleSegment(param.occupied,0));
+
+    }
+
+    private AggregatedResults evaluate(boolean chunked){
+
+        ReadParameters param = new ReadParameters("Parameters");
+        int[][] capacity = new int[param.capacity.length][param.nAssets];
+        for (int s=0; s<capacity.length; s++){
+            for (int assetIdx=0; assetIdx<param.nAssets; assetIdx++){
+                capacity[s][assetIdx] = 4;
+            }
+        }
+
+        EvaluateSystem eval = new EvaluateSystem(param.nAssets,
+                new ReadRelocationMap("Parameters").getRelocationMap(),
+                param.arrivalRates,capacity,param.phDists);
+        eval.setSolverMethod("uniformization");
+        eval.setTolerance(1e-10);
+        eval.setNumberOfThreads(3);
+        eval.forceChunked = chunked;
+        eval.chunkBits = 5;
+
+        eval.evaluateSequence(param.occupied);
+        return(eval.getResults());
+    }
+
+}
@@ -0,0 +1,74 @@
+/*
+ * Copyright 2022 Anders Reenberg Andersen.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.tranreloc.tranreloc;
+
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ *
+ * @author Anders Reenberg Andersen
+ */
+
+//Test that the TR-BDF2 solver meets its tolerance over the whole
+//segment (in the 1-norm), with uniformization at a much smaller
+//tolerance as the reference.
+
+public class ODESolverTest {
+
+    @Test
+    public void segmentErrorWithinTolerance(){
+
+        double t = 5.0;
+        double tol = 1e-6;
+
+        StateDistribution reference = solve(new StateDistSolver(),t,1e-12);
+        StateDistribution ode = solve(new ODESolver(),t,tol);
+
+        double err=0;
+        for (int i=0; i<reference.stateDist.length; i++){
+            err += Math.abs(reference.stateDist[i]-ode.stateDist[i]);
+        }
+        assertTrue(err<=tol,"error " + err);
+
+    }
+
+    private StateDistribution solve(TransientSolver solver, double t, double tol){
+
+        ReadParameters param = new ReadParameters("Parameters");
+        CustomerRelocationMap relMap = new ReadRelocationMap("Parameters").getRelocationMap();
+        Asset[] assets = new Asset[param.nAssets];
+        for (int assetIdx=0; assetIdx<assets.length; assetIdx++){
+            assets[assetIdx] = new Asset(5,param.phDists[0][assetIdx],param.arrivalRates[0][assetIdx]);
+        }
+        StateSpace S = new StateSpace(assets,relMap);
+
+        TransitionRateMatrix tranMat = new TransitionRateMatrix(S);
+        tranMat.generateMatrix();
+        StateDistribution stateDist = new StateDistribution();
+        stateDist.setStateSpace(S);
+        stateDist.setOccupiedCapacity(param.occupied);
+
+        solver.setParallelExecutor(new ParallelExecutor(1));
+        solver.setTransitionRateMatrix(S,tranMat);
+        solver.solve(stateDist,t,tol);
+
+        return(stateDist);
+    }
+
+}
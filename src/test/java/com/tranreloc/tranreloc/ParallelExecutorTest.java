@@ -0,0 +1,58 @@
+/*
+ * Copyright 2022 Anders Reenberg Andersen.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.tranreloc.tranreloc;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ *
+ * @author Anders Reenberg Andersen
+ */
+
+//Test that the row blocks are non-empty, since the solvers find
+//the slot of a block from its first row.
+
+public class ParallelExecutorTest {
+
+    @Test
+    public void partitionRowsHasNoEmptyBlocks(){
+
+        //a few long rows followed by many short ones
+        int n = 10;
+        int[] rowPtr = new int[(n+1)];
+        for (int i=0; i<n; i++){
+            rowPtr[(i+1)] = rowPtr[i]+((i<3) ? 100 : 1);
+        }
+
+        ParallelExecutor executor = new ParallelExecutor(16);
+        try {
+            int[] bounds = executor.partitionRows(rowPtr,n);
+            assertEquals(0,bounds[0]);
+            assertEquals(n,bounds[(bounds.length-1)]);
+            for (int b=1; b<bounds.length; b++){
+                assertTrue(bounds[b]>bounds[(b-1)]);
+            }
+        }finally{
+            executor.shutdown();
+        }
+
+    }
+
+}
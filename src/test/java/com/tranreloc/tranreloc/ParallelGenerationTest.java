@@ -0,0 +1,72 @@
+/*
+ * Copyright 2022 Anders Reenberg Andersen.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.tranreloc.tranreloc;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.util.Arrays;
+import org.junit.jupiter.api.Test;
+
+/**
+ *
+ * @author Anders Reenberg Andersen
+ */
+
+//Test that the rows generated in parallel blocks give the same
+//matrix as the rows generated in one pass, over repeated runs
+//(the threads share the relocation map of the state space).
+
+public class ParallelGenerationTest {
+
+    @Test
+    public void parallelMatrixEqualsSequential(){
+
+        ReadParameters param = new ReadParameters("Parameters");
+        CustomerRelocationMap relMap = new ReadRelocationMap("Parameters").getRelocationMap();
+        Asset[] assets = new Asset[param.nAssets];
+        for (int assetIdx=0; assetIdx<assets.length; assetIdx++){
+            assets[assetIdx] = new Asset(6,param.phDists[0][assetIdx],param.arrivalRates[0][assetIdx]);
+        }
+        StateSpace S = new StateSpace(assets,relMap);
+
+        TransitionRateMatrix sequential = new TransitionRateMatrix(S);
+        sequential.generateMatrix();
+        int nnz = sequential.numberOfNonZeros();
+
+        ParallelExecutor executor = new ParallelExecutor(8);
+        try {
+            for (int run=0; run<20; run++){
+                TransitionRateMatrix parallel = new TransitionRateMatrix(S);
+                parallel.setParallelExecutor(executor);
+                parallel.generateMatrix();
+
+                assertArrayEquals(sequential.rowPtr,parallel.rowPtr);
+                assertArrayEquals(Arrays.copyOf(sequential.columnIndices,nnz),
+                        Arrays.copyOf(parallel.columnIndices,parallel.numberOfNonZeros()));
+                assertArrayEquals(Arrays.copyOf(sequential.rates,nnz),
+                        Arrays.copyOf(parallel.rates,parallel.numberOfNonZeros()));
+                assertArrayEquals(sequential.diagonal,parallel.diagonal);
+                assertEquals(sequential.mxRate,parallel.mxRate);
+            }
+        }finally{
+            executor.shutdown();
+        }
+
+    }
+
+}
@@ -0,0 +1,97 @@
+/*
+ * Copyright 2022 Anders Reenberg Andersen.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.tranreloc.tranreloc;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ *
+ * @author Anders Reenberg Andersen
+ */
+
+//End-to-end test of the partitioned uniformization: two local
+//worker processes solve the first segment of the parameters with
+//a small capacity, and the distribution is compared with the
+//solution of this process.
+
+public class PartitionedSolverTest {
+
+    @Test
+    public void twoWorkersMatchSingleProcess(){
+
+        double[] reference = solveFirstSegment(null);
+
+        WorkerPool pool = WorkerPool.startLocal(2,"Parameters");
+        double[] partitioned;
+        try {
+            partitioned = solveFirstSegment(pool);
+        }finally{
+            pool.shutdown();
+        }
+
+        assertEquals(reference.length,partitioned.length);
+        for (int i=0; i<reference.length; i++){
+            assertEquals(reference[i],partitioned[i],1e-12);
+        }
+
+    }
+
+    @Test
+    public void workersRejectOtherMethods(){
+
+        assertNotNull(TranReloc.unsupportedOptions("krylov","none","none","2"));
+        assertNotNull(TranReloc.unsupportedOptions("none","none","single","2"));
+
+    }
+
+    @Test
+    public void singlePrecisionRejectsUnstoredLayouts(){
+
+        assertNotNull(TranReloc.unsupportedOptions("none","free","single","none"));
+        assertNotNull(TranReloc.unsupportedOptions("none","kronecker","check","none"));
+        assertNotNull(TranReloc.unsupportedOptions("krylov","disk","single","none"));
+        assertNull(TranReloc.unsupportedOptions("none","free","none","none"));
+        assertNull(TranReloc.unsupportedOptions("none","csr","single","none"));
+
+    }
+
+    private double[] solveFirstSegment(WorkerPool pool){
+
+        ReadParameters param = new ReadParameters("Parameters");
+        int[][] capacity = new int[param.capacity.length][param.nAssets];
+        for (int s=0; s<capacity.length; s++){
+            for (int assetIdx=0; assetIdx<param.nAssets; assetIdx++){
+                capacity[s][assetIdx] = 5;
+            }
+        }
+
+        EvaluateSystem eval = new EvaluateSystem(param.nAssets,
+                new ReadRelocationMap("Parameters").getRelocationMap(),
+                param.arrivalRates,capacity,param.phDists);
+        eval.setSolverMethod("uniformization");
+        if (pool!=null){
+            eval.setWorkers(pool);
+        }
+
+        return(eval.evaluateSingleSegment(param.occupied,0).stateDist);
+    }
+
+}
@@ -0,0 +1,66 @@
+/*
+ * Copyright 2022 Anders Reenberg Andersen.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.tranreloc.tranreloc;
+
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ *
+ * @author Anders Reenberg Andersen
+ */
+
+//Test that a segment solved in double precision because its
+//layout has no single precision does not change the precision
+//of the later segments.
+
+public class SinglePrecisionFallbackTest {
+
+    @Test
+    public void fallbackOnlyAffectsTheSegment(){
+
+        ReadParameters param = new ReadParameters("Parameters");
+        int[][] capacity = new int[param.capacity.length][param.nAssets];
+        for (int s=0; s<capacity.length; s++){
+            for (int assetIdx=0; assetIdx<param.nAssets; assetIdx++){
+                capacity[s][assetIdx] = 4;
+            }
+        }
+
+        EvaluateSystem eval = new EvaluateSystem(param.nAssets,
+                new ReadRelocationMap("Parameters").getRelocationMap(),
+                param.arrivalRates,capacity,param.phDists);
+        eval.setSolverMethod("uniformization");
+        eval.setSinglePrecision(true,false);
+
+        //the matrix-free layout is only available in double precision
+        eval.setMatrixLayout("free");
+        StateDistribution stateDist = eval.evaluateSingleSegment(param.occupied,0);
+        assertTrue(eval.singlePrecision);
+        assertFalse(eval.solver.singlePrecision);
+
+        //a stored matrix is solved in single precision again
+        eval.setMatrixLayout("csr");
+        eval.evaluateSingleSegment(stateDist,0,true);
+        assertTrue(eval.singlePrecision);
+        assertTrue(eval.solver.singlePrecision);
+
+    }
+
+}
@@ -0,0 +1,63 @@
+/*
+ * Copyright 2022 Anders Reenberg Andersen.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.tranreloc.tranreloc;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ *
+ * @author Anders Reenberg Andersen
+ */
+
+//Test of the truncated uniformization with more threads than
+//non-empty row blocks. The single asset model has few states, so
+//the rows are split into fewer blocks than the candidates.
+
+public class TruncationBlocksTest {
+
+    @Test
+    public void moreThreadsThanRowBlocks(){
+
+        double[] reference = solveFirstSegment(1);
+        double[] truncated = solveFirstSegment(16);
+
+        assertEquals(reference.length,truncated.length);
+        double err=0;
+        for (int i=0; i<reference.length; i++){
+            err += Math.abs(reference[i]-truncated[i]);
+        }
+        assertTrue(err<1e-8);
+
+    }
+
+    private double[] solveFirstSegment(int nThreads){
+
+        ReadParameters param = new ReadParameters("Parameters_1asset");
+        EvaluateSystem eval = new EvaluateSystem(param.nAssets,
+                new ReadRelocationMap("Parameters_1asset").getRelocationMap(),
+                param.arrivalRates,param.capacity,param.phDists);
+        eval.setSolverMethod("uniformization");
+        eval.setNumberOfThreads(nThreads);
+        eval.setTruncationThreshold(1e-12);
+
+        return(eval.evaluateSingleSegment(param.occupied,0).stateDist);
+    }
+
+}